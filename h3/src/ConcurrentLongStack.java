@@ -0,0 +1,170 @@
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/** Stack of long integers that can be shared by several threads without
+ * locking. Based on the Treiber stack: the top of the stack is swapped in
+ * with a single compare-and-set. When that fails because of contention,
+ * a push and a pop may meet in an elimination array and cancel each other
+ * without touching the top at all.
+ * Sources: R. K. Treiber, "Systems Programming: Coping with Parallelism", 1986;
+ * D. Hendler, N. Shavit, L. Yerushalmi, "A Scalable Lock-free Stack Algorithm", 2004.
+ */
+public class ConcurrentLongStack {
+
+   /** How long a push waits in the elimination array for a partner. */
+   private static final int SPINS = 128;
+
+   private static final class Node {
+      final long value;
+      Node next;
+
+      Node (long value) {
+         this.value = value;
+      }
+   }
+
+   private final AtomicReference<Node> top = new AtomicReference<>();
+   private final AtomicReferenceArray<Node> elimination =
+      new AtomicReferenceArray<>(Math.max(2, Runtime.getRuntime().availableProcessors() / 2));
+
+   public boolean stEmpty() {
+      return top.get() == null;
+   }
+
+   public void push (long a) {
+      Node node = new Node(a);
+      while (true) {
+         Node head = top.get();
+         node.next = head;
+         if (top.compareAndSet(head, node) || eliminatePush(node)) {
+            return;
+         }
+      }
+   }
+
+   public long pop() {
+      while (true) {
+         Node head = top.get();
+         if (head == null) {
+            throw new RuntimeException("Stack is empty");
+         }
+         if (top.compareAndSet(head, head.next)) {
+            return head.value;
+         }
+         Node node = eliminatePop();
+         if (node != null) {
+            return node.value;
+         }
+      }
+   }
+
+   /** Arithmetic operation between the two topmost elements. The two
+    * elements are replaced by the result in one atomic step, so no other
+    * thread can observe or interleave with the intermediate state.
+    * @param s operation sign, one of + - * /
+    */
+   public void op (String s) {
+      if (s.length() != 1) {
+         throw new RuntimeException("Illegal operation: " + s);
+      }
+      op(s.charAt(0));
+   }
+
+   /** Arithmetic operation between the two topmost elements, selected by
+    * its sign without looking up a String. Atomic like <code>op(String)</code>.
+    * @param sign operation sign, one of + - * /
+    */
+   public void op (char sign) {
+      if (sign != '+' && sign != '-' && sign != '*' && sign != '/') {
+         throw new RuntimeException("Illegal operation: " + sign);
+      }
+      while (true) {
+         Node head = top.get();
+         if (head == null || head.next == null) {
+            throw new RuntimeException("Stack underflow: not enough elements for operation " + sign);
+         }
+         long b = head.value;
+         long a = head.next.value;
+         long result;
+         switch (sign) {
+            case '+':
+               result = a + b;
+               break;
+            case '-':
+               result = a - b;
+               break;
+            case '*':
+               result = a * b;
+               break;
+            default:
+               if (b == 0) {
+                  throw new ArithmeticException("Division by zero: cannot divide " + a + " by zero.");
+               }
+               result = a / b;
+         }
+         Node node = new Node(result);
+         node.next = head.next.next;
+         if (top.compareAndSet(head, node)) {
+            return;
+         }
+      }
+   }
+
+   public long tos() {
+      Node head = top.get();
+      if (head == null) {
+         throw new RuntimeException("Stack underflow: cannot read top of an empty stack.");
+      }
+      return head.value;
+   }
+
+   /** Snapshot of the stack, bottom first. */
+   @Override
+   public String toString() {
+      Node head = top.get();
+      int size = 0;
+      for (Node n = head; n != null; n = n.next) {
+         size++;
+      }
+      long[] values = new long[size];
+      for (Node n = head; n != null; n = n.next) {
+         values[--size] = n.value;
+      }
+      StringBuilder sb = new StringBuilder();
+      for (long value : values) {
+         if (sb.length() > 0) sb.append(' ');
+         sb.append(value);
+      }
+      return sb.toString();
+   }
+
+   /** Offers the node to a concurrent pop through a random slot.
+    * @return true if a pop took the node, false if it must be pushed again
+    */
+   private boolean eliminatePush (Node node) {
+      int slot = ThreadLocalRandom.current().nextInt(elimination.length());
+      if (!elimination.compareAndSet(slot, null, node)) {
+         return false;
+      }
+      for (int i = 0; i < SPINS; i++) {
+         if (elimination.get(slot) != node) {
+            return true;
+         }
+         Thread.onSpinWait();
+      }
+      return !elimination.compareAndSet(slot, node, null);
+   }
+
+   /** Takes a node offered by a concurrent push, if there is one in a random slot. */
+   private Node eliminatePop() {
+      int slot = ThreadLocalRandom.current().nextInt(elimination.length());
+      Node node = elimination.get(slot);
+      if (node != null && elimination.compareAndSet(slot, node, null)) {
+         return node;
+      }
+      return null;
+   }
+
+}
+
@@ -1,5 +1,14 @@
-import java.util.LinkedList;
-import java.util.ListIterator;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.LongBinaryOperator;
 
 public class LongStack{
 
@@ -40,121 +49,523 @@ public class LongStack{
       System.out.println("Test 6: " + (LongStack.interpret(expression) == 7));
    }
 
-   private LinkedList<Long> stack;
+   private static final RpnProgramCache PROGRAMS = new RpnProgramCache(4096);
+   private static final RpnProgramCache INFIX = new RpnProgramCache(4096, RpnInfixCompiler::parse);
+   private static final int WRITE_BUFFER = 8192;
+   /** Number of elements reversed at a time when writing bottom first. */
+   private static final int WRITE_SEGMENT = 1024;
+
+   /** Element of the stack. Nodes are never modified after creation, so
+    * a chain can be shared by any number of stacks: clone copies only the
+    * reference to the top, and push and pop replace only the top.
+    * Each node also records the size and the hash code of the stack it is
+    * the top of, so both are known in O(1) and are updated by every push.
+    */
+   private static final class Node {
+      private final long value;
+      private final Node next;
+      private final int size;
+      private final int hash;
+
+      Node (long value, Node next) {
+         this.value = value;
+         this.next = next;
+         this.size = next == null ? 1 : next.size + 1;
+         this.hash = 31 * (next == null ? 1 : next.hash) + Long.hashCode(value);
+      }
+   }
+
+   private Node top;
 
    public LongStack() {
-      stack = new LinkedList<>();
+      top = null;
    }
 
    @Override
    public Object clone() throws CloneNotSupportedException {
       LongStack cloned = new LongStack();
-      cloned.stack = new LinkedList<>(this.stack);
+      cloned.top = this.top;
       return cloned;
    }
 
    public boolean stEmpty() {
-      return stack.isEmpty();
+      return top == null;
+   }
+
+   /** Number of elements, O(1). */
+   public int size() {
+      return top == null ? 0 : top.size;
    }
 
    public void push (long a) {
-      stack.push(a);
+      top = new Node(a, top);
    }
 
    public long pop() {
-      if (stack.isEmpty()) {
+      if (top == null) {
          throw new RuntimeException("Stack is empty");
       }
-        return stack.pop();
+      long value = top.value;
+      top = top.next;
+      return value;
    } // pop
 
+   /** Pushes src[off], ..., src[off + len - 1]; the last one ends up on top.
+    * @param src values to push
+    * @param off index of the first value
+    * @param len number of values
+    */
+   public void pushAll (long[] src, int off, int len) {
+      Objects.checkFromIndexSize(off, len, src.length);
+      Node node = top;
+      for (int i = off; i < off + len; i++) {
+         node = new Node(src[i], node);
+      }
+      top = node;
+   }
+
+   /** Pops len elements into dst[off], ..., dst[off + len - 1], the top
+    * going to the last index, so that <code>pushAll</code> with the same
+    * arguments restores the stack.
+    * @param dst destination of the popped values
+    * @param off index for the deepest popped element
+    * @param len number of elements to pop
+    * @throws RuntimeException if the stack has fewer than len elements
+    */
+   public void popInto (long[] dst, int off, int len) {
+      Objects.checkFromIndexSize(off, len, dst.length);
+      if (size() < len) {
+         throw new RuntimeException("Stack underflow: cannot pop " + len + " elements from a stack of " + size());
+      }
+      Node node = top;
+      for (int i = off + len - 1; i >= off; i--) {
+         dst[i] = node.value;
+         node = node.next;
+      }
+      top = node;
+   }
+
+   /** Folds the k topmost elements into one with a binary operator, with
+    * the same result as k - 1 calls of <code>op(s)</code>: the operator is
+    * applied to the two topmost elements first. The depth is checked once
+    * and if the operator fails the stack is left unchanged.
+    * @param s binary operator, such as + - * / or max
+    * @param k number of elements to fold, at least 1
+    */
+   public void opN (String s, int k) {
+      if (k < 1) {
+         throw new IllegalArgumentException("Cannot fold " + k + " elements with " + s);
+      }
+      byte opcode = RpnOperators.resolve(s, 0, s.length());
+      if (size() < k) {
+         throw new RuntimeException("Stack underflow: not enough elements for operation " + s + " on " + k + " elements");
+      }
+      LongBinaryOperator operator = RpnOperators.BINARY[opcode];
+      if (operator == null) {
+         throw new RuntimeException("Illegal operation: " + s);
+      }
+      long result = top.value;
+      Node node = top.next;
+      for (int i = 1; i < k; i++) {
+         result = operator.applyAsLong(node.value, result);
+         node = node.next;
+      }
+      top = new Node(result, node);
+   }
+
+   /** Operation on the topmost elements: + - * / or any operator of
+    * <code>RpnOperators</code>, including the stack words.
+    * @param s operator
+    */
    public void op (String s) {
-      if (stack.size() < 2) {
+      op(RpnOperators.resolve(s, 0, s.length()), s);
+   }
+
+   /** Operation on the topmost elements, selected by a one-character
+    * operator without looking up a String.
+    * @param c operator, such as + - * /
+    */
+   public void op (char c) {
+      byte opcode = RpnOperators.opcode(c);
+      if (opcode == RpnProgram.PUSH || size() < RpnOperators.pops(opcode)) {
+         op(opcode, String.valueOf(c));
+      } else {
+         apply(opcode);
+      }
+   }
+
+   private void op (byte opcode, String s) {
+      if (size() < (opcode == RpnProgram.PUSH ? 2 : RpnOperators.pops(opcode))) {
          throw new RuntimeException("Stack underflow: not enough elements for operation " + s);
       }
-      long b = stack.pop();
-      long a = stack.pop();
-      long result;
-      switch (s) {
-         case "+":
-            result = a + b;
-            break;
-         case "-":
-            result = a - b;
-            break;
-         case "*":
-            result = a * b;
-            break;
-         case "/":
-            if (b == 0) {
-               throw new ArithmeticException("Division by zero: cannot divide " + a + " by zero.");
-            }
-            result = a / b;
-            break;
+      if (opcode == RpnProgram.PUSH) {
+         throw new RuntimeException("Illegal operation: " + s);
+      }
+      apply(opcode);
+   }
+
+   private void apply (byte opcode) {
+      switch (opcode) {
+         case RpnOperators.DUP:
+            push(top.value);
+            return;
+         case RpnOperators.SWAP:
+            top = new Node(top.next.value, new Node(top.value, top.next.next));
+            return;
+         case RpnOperators.DROP:
+            top = top.next;
+            return;
+         case RpnOperators.OVER:
+            push(top.next.value);
+            return;
          default:
-            throw new RuntimeException("Illegal operation: " + s);
       }
-      stack.push(result);
+      if (RpnOperators.UNARY[opcode] != null) {
+         top = new Node(RpnOperators.UNARY[opcode].applyAsLong(top.value), top.next);
+      } else {
+         top = new Node(RpnOperators.BINARY[opcode].applyAsLong(top.next.value, top.value), top.next.next);
+      }
    }
   
    public long tos() {
-      if (stack.isEmpty()) {
+      if (top == null) {
          throw new RuntimeException("Stack underflow: cannot read top of an empty stack.");
       }
-      return stack.peek();
+      return top.value;
    }
 
+   /** Element-wise comparison from the top. Stacks of different size or
+    * hash code are rejected without looking at the elements, and the walk
+    * stops as soon as both stacks reach a shared node, since everything
+    * below it is the same.
+    */
    @Override
    public boolean equals (Object o) {
       if (this == o) return true;
       if (o == null || getClass() != o.getClass()) return false;
       LongStack longStack = (LongStack) o;
-      return stack.equals(longStack.stack);
+      if (size() != longStack.size() || hashCode() != longStack.hashCode()) {
+         return false;
+      }
+      Node p = top;
+      Node q = longStack.top;
+      while (p != q) {
+         if (p == null || q == null || p.value != q.value) {
+            return false;
+         }
+         p = p.next;
+         q = q.next;
+      }
+      return true;
+   }
+
+   /** Polynomial hash of the elements from bottom to top, the same as
+    * <code>List.hashCode</code> of the elements as Long values. O(1).
+    */
+   @Override
+   public int hashCode() {
+      return top == null ? 1 : top.hash;
    }
 
    @Override
    public String toString() {
-      StringBuffer sb = new StringBuffer();
-      ListIterator<Long> iterator = stack.listIterator(stack.size());
-      while (iterator.hasPrevious()) {
-         sb.append(iterator.previous()).append(" ");
+      StringBuilder sb = new StringBuilder();
+      try {
+         writeTo(sb);
+      } catch (IOException e) {
+         throw new UncheckedIOException("StringBuilder cannot fail", e);
+      }
+      return sb.toString();
+   }
+
+   /** Writes the string form of the stack (bottom first, top last,
+    * separated by spaces). Numbers are formatted straight into one
+    * reusable char buffer, no String is created per element. The chain is
+    * reversed one segment at a time, so the extra memory does not grow
+    * with the stack beyond one reference per segment.
+    * @param out destination
+    * @throws IOException if out fails
+    */
+   public void writeTo (Appendable out) throws IOException {
+      Node[] segments = segments();
+      long[] values = new long[WRITE_SEGMENT];
+      char[] buffer = new char[WRITE_BUFFER];
+      int pos = 0;
+      for (int s = segments.length - 1; s >= 0; s--) {
+         int n = reverse(segments[s], values);
+         for (int i = 0; i < n; i++) {
+            if (pos > WRITE_BUFFER - 21) {
+               append(out, buffer, pos);
+               pos = 0;
+            }
+            if (i > 0 || s < segments.length - 1) buffer[pos++] = ' ';
+            long v = values[i];
+            // Digits are produced from the negated value so that Long.MIN_VALUE works.
+            if (v < 0) {
+               buffer[pos++] = '-';
+            } else {
+               v = -v;
+            }
+            int end = pos + digits(v);
+            for (int j = end - 1; j >= pos; j--) {
+               buffer[j] = (char) ('0' - v % 10);
+               v /= 10;
+            }
+            pos = end;
+         }
+      }
+      append(out, buffer, pos);
+   }
+
+   /** Writes the string form of the stack (bottom first, top last,
+    * separated by spaces) as ASCII bytes through one reusable buffer.
+    * @param out destination
+    * @throws IOException if out fails
+    */
+   public void writeTo (WritableByteChannel out) throws IOException {
+      Node[] segments = segments();
+      long[] values = new long[WRITE_SEGMENT];
+      ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER);
+      byte[] bytes = buffer.array();
+      int pos = 0;
+      for (int s = segments.length - 1; s >= 0; s--) {
+         int n = reverse(segments[s], values);
+         for (int i = 0; i < n; i++) {
+            if (pos > WRITE_BUFFER - 21) {
+               buffer.limit(pos);
+               while (buffer.hasRemaining()) out.write(buffer);
+               buffer.clear();
+               pos = 0;
+            }
+            if (i > 0 || s < segments.length - 1) bytes[pos++] = ' ';
+            long v = values[i];
+            if (v < 0) {
+               bytes[pos++] = '-';
+            } else {
+               v = -v;
+            }
+            int end = pos + digits(v);
+            for (int j = end - 1; j >= pos; j--) {
+               bytes[j] = (byte) ('0' - v % 10);
+               v /= 10;
+            }
+            pos = end;
+         }
+      }
+      buffer.limit(pos);
+      while (buffer.hasRemaining()) out.write(buffer);
+   }
+
+   /** Topmost node of every segment of WRITE_SEGMENT elements, from the top. */
+   private Node[] segments() {
+      Node[] segments = new Node[(size() + WRITE_SEGMENT - 1) / WRITE_SEGMENT];
+      Node n = top;
+      for (int s = 0; s < segments.length; s++) {
+         segments[s] = n;
+         for (int i = 0; i < WRITE_SEGMENT && n != null; i++) {
+            n = n.next;
+         }
+      }
+      return segments;
+   }
+
+   /** Elements of the segment starting at a node, from bottom to top.
+    * @return number of elements written to values
+    */
+   private static int reverse (Node first, long[] values) {
+      int n = Math.min(first.size, values.length);
+      Node node = first;
+      for (int i = n - 1; i >= 0; i--) {
+         values[i] = node.value;
+         node = node.next;
+      }
+      return n;
+   }
+
+   /** Number of decimal digits of -v, for v &lt;= 0. */
+   private static int digits (long v) {
+      int count = 1;
+      for (long p = -10; count < 19 && v <= p; p *= 10) {
+         count++;
+      }
+      return count;
+   }
+
+   private static void append (Appendable out, char[] buffer, int length) throws IOException {
+      if (out instanceof StringBuilder) {
+         ((StringBuilder) out).append(buffer, 0, length);
+      } else if (out instanceof Writer) {
+         ((Writer) out).write(buffer, 0, length);
+      } else {
+         out.append(CharBuffer.wrap(buffer, 0, length));
       }
-      return sb.toString().trim();
    }
 
    public static long interpret (String pol) {
-      if (pol == null || pol.trim().isEmpty()) {
-         throw new RuntimeException("Invalid expression: expression is null or empty. Expression: \"" + pol + "\"");
+      if (RpnMetrics.enabled) {
+         return RpnMetrics.interpret(pol);
       }
+      return PROGRAMS.lookup(pol).run();
+   }
 
-      LongStack stack = new LongStack();
-      String[] tokens = pol.trim().split("\\s+");
+   /** Evaluation of an expression without throwing on incorrect input.
+    * @param pol expression in RPN
+    * @return value, or kind and position of the error
+    */
+   public static RpnResult tryInterpret (String pol) {
+      RpnResult result = new RpnResult();
+      tryInterpret(pol, result);
+      return result;
+   }
+
+   /** Evaluation of an expression into a reusable result holder, without
+    * throwing on incorrect input. The error message is built only if
+    * <code>result.message()</code> is called.
+    * @param pol expression in RPN
+    * @param result holder for the value or the error
+    * @return true if the expression was correct
+    */
+   public static boolean tryInterpret (String pol, RpnResult result) {
+      if (RpnMetrics.enabled) {
+         return RpnMetrics.tryInterpret(pol, result);
+      }
+      return PROGRAMS.lookup(pol).tryRun(null, result);
+   }
+
+   /** Cache of compiled expressions used by interpret. */
+   public static RpnProgramCache programCache() {
+      return PROGRAMS;
+   }
+
+   /** Evaluation of an expression in infix notation, such as
+    * <code>(35 + 5) / (3 - 13)</code>, without converting it to RPN text.
+    * @param infix expression in infix notation
+    * @return value of the expression
+    * @throws RuntimeException if the expression is not correct
+    */
+   public static long interpretInfix (String infix) {
+      return INFIX.get(infix).run();
+   }
+
+   /** Cache of compiled expressions used by interpretInfix. */
+   public static RpnProgramCache infixCache() {
+      return INFIX;
+   }
 
-      for (String token : tokens) {
-         if (token.isEmpty()) {
-            continue;
+   /** Evaluation of a batch of expressions in parallel. An incorrect
+    * expression does not stop the batch, its error is reported instead
+    * of a value. The expressions are compiled without going through the
+    * cache of <code>interpret</code>, so a large batch of one-off
+    * expressions does not evict the programs used again and again.
+    * @param pols expressions in RPN
+    * @return value or error of each expression
+    */
+   public static BatchResult interpretAll (List<String> pols) {
+      String[] batch = pols.toArray(new String[0]);
+      long[] values = new long[batch.length];
+      return new BatchResult(values, interpretAll(batch, values));
+   }
+
+   /** Evaluation of a batch of expressions in parallel, results are
+    * written to <code>out</code>.
+    * @param pols expressions in RPN
+    * @param out value of each correct expression, at least as long as pols
+    * @return errors, the element is null for each correct expression
+    */
+   public static RuntimeException[] interpretAll (String[] pols, long[] out) {
+      if (out.length < pols.length) {
+         throw new IllegalArgumentException("Result array of length " + out.length
+            + " cannot hold " + pols.length + " values");
+      }
+      RuntimeException[] errors = new RuntimeException[pols.length];
+      ForkJoinPool.commonPool().invoke(new Batch(pols, out, errors, 0, pols.length));
+      return errors;
+   }
+
+   /** Part of a batch, split in halves until small enough to evaluate
+    * on one worker. Each worker compiles and runs the programs on its
+    * own stack, with no lock shared with the other workers.
+    */
+   private static class Batch extends RecursiveAction {
+
+      private static final long serialVersionUID = 1L;
+      private static final int THRESHOLD = 256;
+
+      private final String[] pols;
+      private final long[] out;
+      private final RuntimeException[] errors;
+      private final int from;
+      private final int to;
+
+      Batch (String[] pols, long[] out, RuntimeException[] errors, int from, int to) {
+         this.pols = pols;
+         this.out = out;
+         this.errors = errors;
+         this.from = from;
+         this.to = to;
+      }
+
+      @Override
+      protected void compute() {
+         if (to - from > THRESHOLD) {
+            int mid = (from + to) >>> 1;
+            invokeAll(new Batch(pols, out, errors, from, mid), new Batch(pols, out, errors, mid, to));
+            return;
          }
-         try {
-            long num = Long.parseLong(token);
-            stack.push(num);
-         } catch (NumberFormatException e) {
-            if (token.equals("+") || token.equals("-") || token.equals("*") || token.equals("/")) {
-               try {
-                  stack.op(token);
-               } catch (RuntimeException re) {
-                  throw new RuntimeException("Error during operation: " + re.getMessage() + ". Expression: " + pol);
-               }
-            } else {
-               throw new RuntimeException("Invalid token: " + token + " in expression: " + pol);
+         for (int i = from; i < to; i++) {
+            try {
+               out[i] = RpnProgram.parse(pols[i]).optimize().run();
+            } catch (RuntimeException e) {
+               errors[i] = e;
             }
          }
       }
+   }
+
+   /** Values and errors of a batch evaluated by interpretAll. */
+   public static class BatchResult {
 
-      if (stack.stack.size() != 1) {
-         throw new RuntimeException("Invalid expression: leaves redundant elements on the stack. Expression: \"" + pol + "\"");
+      private final long[] values;
+      private final RuntimeException[] errors;
+
+      BatchResult (long[] values, RuntimeException[] errors) {
+         this.values = values;
+         this.errors = errors;
+      }
+
+      /** Number of expressions in the batch. */
+      public int size() {
+         return values.length;
+      }
+
+      /** Whether the i-th expression was not correct. */
+      public boolean failed (int i) {
+         return errors[i] != null;
+      }
+
+      /** Value of the i-th expression.
+       * @throws RuntimeException the error of the expression, if it failed
+       */
+      public long value (int i) {
+         if (errors[i] != null) {
+            throw errors[i];
+         }
+         return values[i];
+      }
+
+      /** Error of the i-th expression, null if it was correct. */
+      public RuntimeException error (int i) {
+         return errors[i];
       }
 
-      return stack.pop();
+      /** Number of incorrect expressions. */
+      public int errorCount() {
+         int count = 0;
+         for (RuntimeException e : errors) {
+            if (e != null) count++;
+         }
+         return count;
+      }
    }
 
 }
@@ -0,0 +1,262 @@
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/** Stack of long integers kept outside the Java heap, for stacks of
+ * hundreds of millions of elements. Elements are stored 8 bytes each in
+ * a chain of direct buffers whose sizes double up to 1 GiB, so growing
+ * the stack never copies it and the garbage collector never scans it.
+ * <p>Direct buffers count against <code>-XX:MaxDirectMemorySize</code>,
+ * which defaults to the maximum heap size <code>-Xmx</code>; a stack of
+ * 500 million elements needs 4 GB of it. <code>close</code> and a
+ * shrinking stack free their buffers at once, without waiting for the
+ * garbage collector, through <code>sun.misc.Unsafe.invokeCleaner</code>
+ * of the jdk.unsupported module. It is looked up by reflection, so the
+ * class compiles without warnings; on a JDK without it the buffers are
+ * freed by their cleaners once they have been collected. A closed stack
+ * cannot be used any more. Not safe for use by several threads.
+ */
+public class OffHeapLongStack implements AutoCloseable {
+
+   private static final int FIRST_CHUNK = 1 << 10;
+   private static final int LAST_CHUNK = 1 << 27;
+   /** Unsafe.invokeCleaner bound to the Unsafe instance, null if not available. */
+   private static final MethodHandle INVOKE_CLEANER = invokeCleaner();
+
+   private ByteBuffer[] chunks = new ByteBuffer[4];
+   private int chunk = -1;
+   /** Number of elements in the current chunk. */
+   private int used;
+   private long size;
+   private boolean closed;
+
+   public boolean stEmpty() {
+      return size() == 0;
+   }
+
+   /** Number of elements.
+    * @return size of the stack, may exceed Integer.MAX_VALUE
+    */
+   public long size() {
+      checkOpen();
+      return size;
+   }
+
+   public void push (long a) {
+      checkOpen();
+      if (chunk < 0 || used == capacity(chunk)) {
+         nextChunk();
+      }
+      chunks[chunk].putLong(used++ << 3, a);
+      size++;
+   }
+
+   public long pop() {
+      if (stEmpty()) {
+         throw new RuntimeException("Stack is empty");
+      }
+      long value = chunks[chunk].getLong(--used << 3);
+      size--;
+      if (used == 0 && chunk > 0) {
+         previousChunk();
+      }
+      return value;
+   }
+
+   public long tos() {
+      if (stEmpty()) {
+         throw new RuntimeException("Stack underflow: cannot read top of an empty stack.");
+      }
+      return chunks[chunk].getLong((used - 1) << 3);
+   }
+
+   /** Operation on the topmost elements: + - * / or any operator of
+    * <code>RpnOperators</code>, including the stack words.
+    * @param s operator
+    */
+   public void op (String s) {
+      op(RpnOperators.resolve(s, 0, s.length()), s);
+   }
+
+   /** Operation on the topmost elements, selected by a one-character
+    * operator without creating a String.
+    * @param c operator, such as + - * /
+    */
+   public void op (char c) {
+      byte opcode = RpnOperators.opcode(c);
+      if (opcode == RpnProgram.PUSH || size() < RpnOperators.pops(opcode)) {
+         op(opcode, String.valueOf(c));
+      } else {
+         apply(opcode);
+      }
+   }
+
+   private void op (byte opcode, String s) {
+      if (size() < (opcode == RpnProgram.PUSH ? 2 : RpnOperators.pops(opcode))) {
+         throw new RuntimeException("Stack underflow: not enough elements for operation " + s);
+      }
+      if (opcode == RpnProgram.PUSH) {
+         throw new RuntimeException("Illegal operation: " + s);
+      }
+      apply(opcode);
+   }
+
+   private void apply (byte opcode) {
+      long b = tos();
+      long a = RpnOperators.pops(opcode) > 1 ? get(size - 2) : 0;
+      switch (opcode) {
+         case RpnOperators.DUP:
+            push(b);
+            return;
+         case RpnOperators.SWAP:
+            set(size - 2, b);
+            set(size - 1, a);
+            return;
+         case RpnOperators.DROP:
+            pop();
+            return;
+         case RpnOperators.OVER:
+            push(a);
+            return;
+         default:
+      }
+      if (RpnOperators.UNARY[opcode] != null) {
+         set(size - 1, RpnOperators.UNARY[opcode].applyAsLong(b));
+      } else {
+         long result = RpnOperators.BINARY[opcode].applyAsLong(a, b);
+         pop();
+         set(size - 1, result);
+      }
+   }
+
+   /** Elements from bottom to top, separated by spaces, like <code>LongStack</code>. */
+   @Override
+   public String toString() {
+      checkOpen();
+      StringBuilder out = new StringBuilder();
+      for (int c = 0; c <= chunk; c++) {
+         int n = c == chunk ? used : capacity(c);
+         for (int i = 0; i < n; i++) {
+            if (out.length() > 0) {
+               out.append(' ');
+            }
+            out.append(chunks[c].getLong(i << 3));
+         }
+      }
+      return out.toString();
+   }
+
+   /** Whether the stack has been closed.
+    * @return true after <code>close</code>
+    */
+   public boolean isClosed() {
+      return closed;
+   }
+
+   /** Releases the memory of the stack. Closing twice has no effect. */
+   @Override
+   public void close() {
+      if (closed) {
+         return;
+      }
+      closed = true;
+      for (int c = 0; c < chunks.length; c++) {
+         release(chunks[c]);
+         chunks[c] = null;
+      }
+      size = 0;
+      used = 0;
+      chunk = -1;
+   }
+
+   private long get (long index) {
+      return chunks[chunkOf(index)].getLong(offsetOf(index) << 3);
+   }
+
+   private void set (long index, long value) {
+      chunks[chunkOf(index)].putLong(offsetOf(index) << 3, value);
+   }
+
+   /** Chunk c holds FIRST_CHUNK * 2^c elements, up to LAST_CHUNK. */
+   private static int capacity (int c) {
+      return c < 17 ? FIRST_CHUNK << c : LAST_CHUNK;
+   }
+
+   private static long start (int c) {
+      return c <= 17 ? (long) FIRST_CHUNK * ((1L << c) - 1) : start(17) + (long) (c - 17) * LAST_CHUNK;
+   }
+
+   private static int chunkOf (long index) {
+      if (index >= start(17)) {
+         return 17 + (int) ((index - start(17)) / LAST_CHUNK);
+      }
+      return 63 - Long.numberOfLeadingZeros(index / FIRST_CHUNK + 1);
+   }
+
+   private static int offsetOf (long index) {
+      return (int) (index - start(chunkOf(index)));
+   }
+
+   private void nextChunk() {
+      chunk++;
+      if (chunk == chunks.length) {
+         chunks = Arrays.copyOf(chunks, chunks.length * 2);
+      }
+      if (chunks[chunk] == null) {
+         chunks[chunk] = ByteBuffer.allocateDirect(capacity(chunk) << 3).order(ByteOrder.nativeOrder());
+      }
+      used = 0;
+   }
+
+   /** Steps back to the previous, full chunk. The chunk just emptied is
+    * kept for the next push; the one above it, if any, is released, so
+    * a stack that shrinks gives its memory back.
+    */
+   private void previousChunk() {
+      if (chunk + 1 < chunks.length && chunks[chunk + 1] != null) {
+         release(chunks[chunk + 1]);
+         chunks[chunk + 1] = null;
+      }
+      chunk--;
+      used = capacity(chunk);
+   }
+
+   private void checkOpen() {
+      if (closed) {
+         throw new IllegalStateException("Stack is closed");
+      }
+   }
+
+
+   /** Frees a direct buffer now instead of when it is collected. */
+   private static void release (ByteBuffer buffer) {
+      if (buffer == null || INVOKE_CLEANER == null) {
+         return;
+      }
+      try {
+         INVOKE_CLEANER.invokeExact(buffer);
+      } catch (RuntimeException | Error e) {
+         throw e;
+      } catch (Throwable e) {
+         throw new IllegalStateException("Cannot release off-heap chunk of " + buffer.capacity() + " bytes", e);
+      }
+   }
+
+   private static MethodHandle invokeCleaner() {
+      try {
+         Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+         Field field = unsafeClass.getDeclaredField("theUnsafe");
+         field.setAccessible(true);
+         return MethodHandles.lookup()
+            .findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+            .bindTo(field.get(null));
+      } catch (ReflectiveOperationException | RuntimeException e) {
+         return null;         // memory is then released by the garbage collector
+      }
+   }
+
+}
@@ -0,0 +1,351 @@
+import java.util.Arrays;
+
+/** Compiler of arithmetic expressions in ordinary infix notation to the
+ * same program <code>RpnProgram.compile</code> makes of the equivalent RPN
+ * expression, without building the RPN text. Dijkstra's shunting-yard
+ * algorithm: operands are emitted as they are read, operators wait on a
+ * stack until an operator of lower precedence or a closing parenthesis
+ * arrives.
+ * <p>From lowest to highest precedence: <code>|</code>, <code>^</code>,
+ * <code>&amp;</code>, <code>&lt;&lt; &gt;&gt; &gt;&gt;&gt;</code>, <code>+ -</code>,
+ * <code>* / %</code>, and the unary <code>-</code>, <code>+</code>,
+ * <code>~</code>. Binary operators associate to the left. Unary and binary
+ * operators of <code>RpnOperators</code> with an identifier for a name are
+ * called like functions, e.g. <code>max(a, b)</code> or <code>abs(x)</code>.
+ * Other identifiers are variables.
+ * <p>Token indexes in errors count the infix tokens, a negative literal
+ * such as <code>-5</code> being one token.
+ * Source: E. W. Dijkstra, "Algol 60 translation", 1961.
+ */
+final class RpnInfixCompiler {
+
+   /** Pseudo precedences of the entries that are not operators. */
+   private static final int PAREN = -1;
+   private static final int FUNCTION = -2;
+   private static final int UNARY = 7;
+
+   private final String infix;
+   private final String[] variables;
+
+   private byte[] code = new byte[8];
+   private long[] constants = new long[8];
+   private int[] checkTokens = new int[4];
+   private int length;
+   private int pushes;
+   private int checks;
+   private int depth;
+   private int maxDepth;
+
+   // Operator stack: opcode, precedence (or PAREN, FUNCTION), token index,
+   // and for parentheses the number of arguments read so far.
+   private byte[] opcodes = new byte[8];
+   private int[] precedences = new int[8];
+   private int[] tokens = new int[8];
+   private int[] arguments = new int[8];
+   private int top = -1;
+
+   private RpnInfixCompiler (String infix, String[] variables) {
+      this.infix = infix;
+      this.variables = variables;
+   }
+
+   /** Compilation that records an incorrect expression in the returned
+    * program instead of throwing, like <code>RpnProgram.parse</code>.
+    */
+   static RpnProgram parse (String infix, String... variables) {
+      variables = RpnProgram.checkVariables(infix, variables);
+      if (infix == null) {
+         return RpnProgram.failed(infix, variables, RpnResult.ErrorKind.EMPTY, -1, -1, -1);
+      }
+      return new RpnInfixCompiler(infix, variables).compile();
+   }
+
+   private RpnProgram compile() {
+      int n = infix.length();
+      boolean operand = true;          // whether an operand is expected next
+      int token = 0;
+      int i = 0;
+      for (;; token++) {
+         while (i < n && RpnProgram.isSpace(infix.charAt(i))) {
+            i++;
+         }
+         if (i == n) {
+            break;
+         }
+         int start = i;
+         char c = infix.charAt(i);
+         boolean literal = isDigit(c) || (operand && c == '-' && i + 1 < n && isDigit(infix.charAt(i + 1)));
+
+         if (literal || isIdentifierStart(c)) {
+            i++;
+            while (i < n && (literal ? isDigit(infix.charAt(i)) : isIdentifierPart(infix.charAt(i)))) {
+               i++;
+            }
+            if (!operand) {
+               return syntax("missing operator before " + infix.substring(start, i), token, start, i);
+            }
+            operand = false;
+            if (literal) {
+               if (!number(start, i)) {
+                  return failed(RpnResult.ErrorKind.ILLEGAL_TOKEN, token, start, i);
+               }
+               continue;
+            }
+            byte function = RpnOperators.resolve(infix, start, i);
+            if (function >= RpnOperators.FIRST_REGISTERED && next(i) == '(') {
+               pushOperator(function, FUNCTION, token);
+               operand = true;
+               continue;
+            }
+            int v = RpnProgram.variable(variables, infix, start, i);
+            if (v < 0) {
+               return failed(RpnResult.ErrorKind.ILLEGAL_TOKEN, token, start, i);
+            }
+            emit(RpnProgram.LOAD, v);
+            continue;
+         }
+
+         i += symbolLength(i);
+         String symbol = infix.substring(start, i);
+         switch (c) {
+            case '(':
+               if (!operand) {
+                  return syntax("missing operator before (", token, start, i);
+               }
+               pushOperator(RpnProgram.PUSH, PAREN, token);
+               arguments[top] = 1;
+               continue;
+            case ')':
+            case ',':
+               if (operand) {
+                  return syntax("missing operand before " + symbol, token, start, i);
+               }
+               while (top >= 0 && precedences[top] != PAREN) {
+                  popOperator();
+               }
+               if (top < 0) {
+                  return syntax("no ( for " + symbol, token, start, i);
+               }
+               if (c == ',') {
+                  if (top == 0 || precedences[top - 1] != FUNCTION) {
+                     return syntax(", outside of function arguments", token, start, i);
+                  }
+                  arguments[top]++;
+                  operand = true;
+                  continue;
+               }
+               int count = arguments[top--];
+               if (top >= 0 && precedences[top] == FUNCTION) {
+                  int expected = RpnOperators.pops(opcodes[top]);
+                  if (count != expected) {
+                     return syntax(RpnOperators.name(opcodes[top]) + " takes " + expected + " arguments, got "
+                        + count, token, start, i);
+                  }
+                  popOperator();
+               } else if (count != 1) {
+                  return syntax("( ) holds " + count + " expressions", token, start, i);
+               }
+               continue;
+            default:
+         }
+
+         int precedence = precedence(symbol);
+         if (precedence < 0 && c != '~') {
+            return failed(RpnResult.ErrorKind.ILLEGAL_TOKEN, token, start, i);
+         }
+         if (operand) {
+            if (c == '+' && i - start == 1) {
+               continue;               // unary plus
+            }
+            byte opcode = c == '-' && i - start == 1 ? RpnOperators.resolve("neg", 0, 3)
+               : c == '~' ? RpnOperators.resolve(symbol, 0, symbol.length()) : RpnProgram.PUSH;
+            if (opcode == RpnProgram.PUSH) {
+               return syntax("missing operand before " + symbol, token, start, i);
+            }
+            pushOperator(opcode, UNARY, token);
+            continue;
+         }
+         if (precedence < 0) {
+            return syntax("missing operator before " + symbol, token, start, i);
+         }
+         while (top >= 0 && precedences[top] >= precedence) {
+            popOperator();
+         }
+         pushOperator(RpnOperators.resolve(symbol, 0, symbol.length()), precedence, token);
+         operand = true;
+      }
+
+      if (length == 0 && top < 0) {
+         return failed(RpnResult.ErrorKind.EMPTY, -1, -1, -1);
+      }
+      if (operand) {
+         return syntax("missing operand at the end", token, -1, -1);
+      }
+      while (top >= 0) {
+         if (precedences[top] == PAREN) {
+            return syntax("no ) for (", tokens[top], -1, -1);
+         }
+         popOperator();
+      }
+      return new RpnProgram(infix, variables, Arrays.copyOf(code, length), Arrays.copyOf(constants, pushes),
+         Arrays.copyOf(checkTokens, checks), maxDepth, 0, null);
+   }
+
+   /** Parses infix[start, end) as a decimal literal, possibly with a minus
+    * sign, accumulating negatively like Long.parseLong.
+    * @return false if the literal does not fit in a long
+    */
+   private boolean number (int start, int end) {
+      boolean negative = infix.charAt(start) == '-';
+      long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+      long result = 0;
+      for (int pos = negative ? start + 1 : start; pos < end; pos++) {
+         int digit = infix.charAt(pos) - '0';
+         if (result < limit / 10) {
+            return false;
+         }
+         result *= 10;
+         if (result < limit + digit) {
+            return false;
+         }
+         result -= digit;
+      }
+      emit(RpnProgram.PUSH, negative ? result : -result);
+      return true;
+   }
+
+   private void emit (byte opcode, long constant) {
+      grow();
+      code[length++] = opcode;
+      if (pushes == constants.length) {
+         constants = Arrays.copyOf(constants, pushes * 2);
+      }
+      constants[pushes++] = constant;
+      maxDepth = Math.max(maxDepth, ++depth);
+   }
+
+   private void popOperator() {
+      byte opcode = opcodes[top];
+      if (RpnOperators.canFail(opcode)) {
+         if (checks == checkTokens.length) {
+            checkTokens = Arrays.copyOf(checkTokens, checks * 2);
+         }
+         checkTokens[checks++] = tokens[top];
+      }
+      top--;
+      grow();
+      code[length++] = opcode;
+      depth += RpnOperators.pushes(opcode) - RpnOperators.pops(opcode);
+   }
+
+   private void pushOperator (byte opcode, int precedence, int token) {
+      if (++top == opcodes.length) {
+         opcodes = Arrays.copyOf(opcodes, top * 2);
+         precedences = Arrays.copyOf(precedences, top * 2);
+         tokens = Arrays.copyOf(tokens, top * 2);
+         arguments = Arrays.copyOf(arguments, top * 2);
+      }
+      opcodes[top] = opcode;
+      precedences[top] = precedence;
+      tokens[top] = token;
+   }
+
+   private void grow() {
+      if (length == code.length) {
+         code = Arrays.copyOf(code, length * 2);
+      }
+   }
+
+   private RpnProgram failed (RpnResult.ErrorKind kind, int token, int start, int end) {
+      return RpnProgram.failed(infix, variables, kind, token, start, end);
+   }
+
+   private RpnProgram syntax (String detail, int token, int start, int end) {
+      RpnProgram program = failed(RpnResult.ErrorKind.SYNTAX, token, start, end);
+      program.error().detail(detail);
+      return program;
+   }
+
+   /** First character after position i that is not whitespace, 0 at the end. */
+   private char next (int i) {
+      while (i < infix.length() && RpnProgram.isSpace(infix.charAt(i))) {
+         i++;
+      }
+      return i < infix.length() ? infix.charAt(i) : 0;
+   }
+
+   /** Length of the operator symbol at i: the shifts take two or three
+    * characters, everything else one.
+    */
+   private int symbolLength (int i) {
+      return symbolLength(infix, i);
+   }
+
+   private static int symbolLength (String infix, int i) {
+      if (infix.startsWith(">>>", i)) {
+         return 3;
+      }
+      return infix.startsWith("<<", i) || infix.startsWith(">>", i) ? 2 : 1;
+   }
+
+   /** Whether the expression has the token, split into tokens the way
+    * the compiler does it: <code>a&gt;&gt;&gt;b</code> has the token
+    * <code>&gt;&gt;&gt;</code> but not <code>&gt;&gt;</code>, and
+    * <code>max2(a, b)</code> does not have <code>max</code>.
+    * @param infix expression in infix notation, may be null
+    * @param token token to look for
+    * @return true if one of the tokens is <code>token</code>
+    */
+   static boolean hasToken (String infix, String token) {
+      if (infix == null) {
+         return false;
+      }
+      int n = infix.length();
+      int i = 0;
+      while (i < n) {
+         char c = infix.charAt(i);
+         if (RpnProgram.isSpace(c)) {
+            i++;
+            continue;
+         }
+         int start = i;
+         if (isDigit(c) || isIdentifierStart(c)) {
+            i++;
+            while (i < n && (isDigit(c) ? isDigit(infix.charAt(i)) : isIdentifierPart(infix.charAt(i)))) {
+               i++;
+            }
+         } else {
+            i += symbolLength(infix, i);
+         }
+         if (i - start == token.length() && infix.startsWith(token, start)) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   private static int precedence (String symbol) {
+      switch (symbol) {
+         case "|": return 1;
+         case "^": return 2;
+         case "&": return 3;
+         case "<<": case ">>": case ">>>": return 4;
+         case "+": case "-": return 5;
+         case "*": case "/": case "%": return 6;
+         default: return -1;
+      }
+   }
+
+   private static boolean isDigit (char c) {
+      return c >= '0' && c <= '9';
+   }
+
+   private static boolean isIdentifierStart (char c) {
+      return Character.isLetter(c) || c == '_';
+   }
+
+   private static boolean isIdentifierPart (char c) {
+      return Character.isLetterOrDigit(c) || c == '_';
+   }
+
+}
@@ -0,0 +1,331 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.HashMap;
+import java.util.Map;
+
+/** Second tier for hot RPN programs: translates a program into a hidden
+ * class whose <code>eval</code> method is straight-line JVM arithmetic,
+ * with no interpreter dispatch left for the JIT compiler to see through.
+ * Division goes through <code>div</code>, which performs the same zero
+ * check as the interpreter, and registered operators through
+ * <code>apply</code>; the stack words map to dup2, pop2 and dup2_x2.
+ * Programs whose method would exceed 8000 bytes of bytecode stay in the
+ * interpreter, since HotSpot does not compile such huge methods. The
+ * hidden class is not strongly bound to its class loader, so it is
+ * unloaded together with its program once the program is evicted from
+ * the cache and no longer referenced.
+ * The class file is written by hand; as the code has no branches, the
+ * Java 8 format without stack map frames is sufficient.
+ * Source: The Java Virtual Machine Specification, Java SE 17 Edition, ch. 4 and 6.
+ */
+final class RpnJit {
+
+   /** Number of runs of a program after which it is compiled. */
+   static final int THRESHOLD = Integer.getInteger("rpn.jit.threshold", 10000);
+
+   /** Evaluation of a compiled program. */
+   interface Compiled {
+      long eval (long[] values);
+   }
+
+   /** HugeMethodLimit of HotSpot: larger methods are never compiled by default. */
+   private static final int MAX_CODE = 8000;
+
+   private RpnJit() {
+   }
+
+   /** Division called from compiled code.
+    * @param check which checked instruction of the program this is, counted from 0
+    */
+   static long div (long a, long b, int check) {
+      if (b == 0) {
+         throw new RpnProgram.Failure(check, a, null);
+      }
+      return a / b;
+   }
+
+   /** Registered binary operator called from compiled code. */
+   static long apply (long a, long b, int opcode, int check) {
+      try {
+         return RpnOperators.BINARY[opcode].applyAsLong(a, b);
+      } catch (ArithmeticException e) {
+         throw new RpnProgram.Failure(check, 0, e.getMessage());
+      }
+   }
+
+   /** Registered unary operator called from compiled code. */
+   static long apply (long a, int opcode, int check) {
+      try {
+         return RpnOperators.UNARY[opcode].applyAsLong(a);
+      } catch (ArithmeticException e) {
+         throw new RpnProgram.Failure(check, 0, e.getMessage());
+      }
+   }
+
+   /** Compiles the program to a hidden class.
+    * @return evaluator, or null if the method would be too large to be compiled
+    */
+   static Compiled compile (RpnProgram program) {
+      byte[] bytes = classFile(program);
+      if (bytes == null) {
+         return null;
+      }
+      try {
+         MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+         return (Compiled) lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class)).invoke();
+      } catch (Throwable e) {
+         throw new IllegalStateException("Cannot load compiled expression: " + program.source(), e);
+      }
+   }
+
+   private static byte[] classFile (RpnProgram program) {
+      ConstantPool pool = new ConstantPool();
+      int thisClass = pool.classRef("RpnCompiled");
+      int objectClass = pool.classRef("java/lang/Object");
+      int compiledClass = pool.classRef("RpnJit$Compiled");
+      int objectInit = pool.methodRef(objectClass, "<init>", "()V");
+      int jitClass = pool.classRef("RpnJit");
+      int div = pool.methodRef(jitClass, "div", "(JJI)J");
+      int apply2 = pool.methodRef(jitClass, "apply", "(JJII)J");
+      int apply1 = pool.methodRef(jitClass, "apply", "(JII)J");
+      int init = pool.utf8("<init>");
+      int voidDescriptor = pool.utf8("()V");
+      int eval = pool.utf8("eval");
+      int evalDescriptor = pool.utf8("([J)J");
+      int codeAttribute = pool.utf8("Code");
+
+      ByteArrayOutputStream code = new ByteArrayOutputStream();
+      byte[] ops = program.code();
+      long[] constants = program.constants();
+      int k = 0;
+      int check = 0;
+      for (byte opcode : ops) {
+         switch (opcode) {
+            case RpnProgram.PUSH:
+               long c = constants[k++];
+               if (c == 0 || c == 1) {
+                  code.write(0x09 + (int) c);             // lconst_0, lconst_1
+               } else {
+                  code.write(0x14);                       // ldc2_w
+                  u2(code, pool.longConstant(c));
+               }
+               break;
+            case RpnProgram.LOAD:
+               code.write(0x2b);                          // aload_1
+               pushInt(code, pool, (int) constants[k++]);
+               code.write(0x2f);                          // laload
+               break;
+            case RpnProgram.ADD:
+               code.write(0x61);                          // ladd
+               break;
+            case RpnProgram.SUB:
+               code.write(0x65);                          // lsub
+               break;
+            case RpnProgram.MUL:
+               code.write(0x69);                          // lmul
+               break;
+            case RpnProgram.SHL:
+               pushInt(code, pool, (int) constants[k++]);
+               code.write(0x79);                          // lshl
+               break;
+            case RpnProgram.DIVP2:
+               int shift = (int) constants[k++];
+               code.write(0x5c);                          // dup2
+               pushInt(code, pool, 63);
+               code.write(0x7b);                          // lshr
+               pushInt(code, pool, 64 - shift);
+               code.write(0x7d);                          // lushr
+               code.write(0x61);                          // ladd
+               pushInt(code, pool, shift);
+               code.write(0x7b);                          // lshr
+               break;
+            case RpnProgram.DIV:
+               pushInt(code, pool, check++);
+               code.write(0xb8);                          // invokestatic
+               u2(code, div);
+               break;
+            case RpnOperators.DUP:
+               code.write(0x5c);                          // dup2
+               break;
+            case RpnOperators.DROP:
+               code.write(0x58);                          // pop2
+               break;
+            case RpnOperators.SWAP:
+               code.write(0x5e);                          // dup2_x2
+               code.write(0x58);                          // pop2
+               break;
+            case RpnOperators.OVER:
+               code.write(0x5e);                          // dup2_x2
+               code.write(0x58);                          // pop2
+               code.write(0x5e);                          // dup2_x2
+               break;
+            default:
+               pushInt(code, pool, opcode);
+               pushInt(code, pool, check++);
+               code.write(0xb8);                          // invokestatic
+               u2(code, RpnOperators.UNARY[opcode] != null ? apply1 : apply2);
+         }
+      }
+      code.write(0xad);                                   // lreturn
+      if (code.size() > MAX_CODE || pool.size() > 0xffff) {
+         return null;
+      }
+
+      try {
+         ByteArrayOutputStream bytes = new ByteArrayOutputStream(code.size() + 256);
+         DataOutputStream out = new DataOutputStream(bytes);
+         out.writeInt(0xcafebabe);
+         out.writeShort(0);                               // minor version
+         out.writeShort(52);                              // Java 8
+         pool.writeTo(out);
+         out.writeShort(0x0031);                          // public final super
+         out.writeShort(thisClass);
+         out.writeShort(objectClass);
+         out.writeShort(1);
+         out.writeShort(compiledClass);
+         out.writeShort(0);                               // fields
+         out.writeShort(2);                               // methods
+
+         out.writeShort(0x0001);                          // public <init>()V
+         out.writeShort(init);
+         out.writeShort(voidDescriptor);
+         out.writeShort(1);
+         out.writeShort(codeAttribute);
+         out.writeInt(12 + 5);
+         out.writeShort(1);                               // max stack
+         out.writeShort(1);                               // max locals
+         out.writeInt(5);
+         out.write(0x2a);                                 // aload_0
+         out.write(0xb7);                                 // invokespecial
+         out.writeShort(objectInit);
+         out.write(0xb1);                                 // return
+         out.writeShort(0);                               // exception table
+         out.writeShort(0);                               // attributes
+
+         out.writeShort(0x0001);                          // public eval([J)J
+         out.writeShort(eval);
+         out.writeShort(evalDescriptor);
+         out.writeShort(1);
+         out.writeShort(codeAttribute);
+         out.writeInt(12 + code.size());
+         out.writeShort(2 * program.maxDepth() + 4);      // max stack: longs, dup2 and two ints
+         out.writeShort(2);                               // max locals: this, values
+         out.writeInt(code.size());
+         code.writeTo(out);
+         out.writeShort(0);
+         out.writeShort(0);
+
+         out.writeShort(0);                               // class attributes
+         out.flush();
+         return bytes.toByteArray();
+      } catch (IOException e) {
+         throw new IllegalStateException("ByteArrayOutputStream cannot fail", e);
+      }
+   }
+
+   private static void pushInt (ByteArrayOutputStream code, ConstantPool pool, int value) {
+      if (value >= -1 && value <= 5) {
+         code.write(0x03 + value);                        // iconst_<n>
+      } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+         code.write(0x10);                                // bipush
+         code.write(value);
+      } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+         code.write(0x11);                                // sipush
+         u2(code, value);
+      } else {
+         code.write(0x13);                                // ldc_w
+         u2(code, pool.intConstant(value));
+      }
+   }
+
+   private static void u2 (ByteArrayOutputStream out, int value) {
+      out.write(value >>> 8);
+      out.write(value);
+   }
+
+   /** Constant pool with deduplicated entries. */
+   private static final class ConstantPool {
+      private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      private final DataOutputStream out = new DataOutputStream(bytes);
+      private final Map<Object, Integer> entries = new HashMap<>();
+      private int next = 1;
+
+      int utf8 (String s) {
+         return entry("Utf8 " + s, 1, () -> {
+            out.writeByte(1);
+            out.writeUTF(s);
+         });
+      }
+
+      int classRef (String name) {
+         int utf8 = utf8(name);
+         return entry("Class " + name, 1, () -> {
+            out.writeByte(7);
+            out.writeShort(utf8);
+         });
+      }
+
+      int methodRef (int owner, String name, String descriptor) {
+         int nameIndex = utf8(name);
+         int descriptorIndex = utf8(descriptor);
+         int nameAndType = entry("NameAndType " + name + descriptor, 1, () -> {
+            out.writeByte(12);
+            out.writeShort(nameIndex);
+            out.writeShort(descriptorIndex);
+         });
+         return entry("Methodref " + owner + " " + nameAndType, 1, () -> {
+            out.writeByte(10);
+            out.writeShort(owner);
+            out.writeShort(nameAndType);
+         });
+      }
+
+      int intConstant (int value) {
+         return entry(value, 1, () -> {
+            out.writeByte(3);
+            out.writeInt(value);
+         });
+      }
+
+      /** Long constants take two slots. */
+      int longConstant (long value) {
+         return entry(value, 2, () -> {
+            out.writeByte(5);
+            out.writeLong(value);
+         });
+      }
+
+      int size() {
+         return next;
+      }
+
+      void writeTo (DataOutputStream target) throws IOException {
+         target.writeShort(next);
+         bytes.writeTo(target);
+      }
+
+      private int entry (Object key, int slots, Writer writer) {
+         Integer index = entries.get(key);
+         if (index != null) {
+            return index;
+         }
+         try {
+            writer.write();
+         } catch (IOException e) {
+            throw new IllegalStateException("ByteArrayOutputStream cannot fail", e);
+         }
+         entries.put(key, next);
+         next += slots;
+         return next - slots;
+      }
+
+      private interface Writer {
+         void write() throws IOException;
+      }
+   }
+
+}
+
@@ -0,0 +1,205 @@
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/** Load generator for <code>RpnServer</code>. Every connection has a
+ * sender thread that keeps up to <code>window</code> requests in flight
+ * and a receiver thread that matches the responses, which arrive in
+ * order, to their send times. Reports throughput and the latency
+ * distribution of single requests. The threads use the channel directly:
+ * the stream adapters of <code>Channels</code> would serialize reading
+ * and writing on the same lock. If either thread of a connection fails,
+ * it closes the channel and interrupts its partner, so the run ends and
+ * reports the first failure.
+ */
+public final class RpnLoadClient {
+
+   /** Outcome of a load run. */
+   public static final class Report {
+      final long requests;
+      final long errors;
+      final long nanos;
+      final RpnMetrics.Histogram latencies;
+
+      Report (long requests, long errors, long nanos, RpnMetrics.Histogram latencies) {
+         this.requests = requests;
+         this.errors = errors;
+         this.nanos = nanos;
+         this.latencies = latencies;
+      }
+
+      /** Number of responses received. */
+      public long requests() {
+         return requests;
+      }
+
+      /** Number of <code>ERR</code> responses. */
+      public long errors() {
+         return errors;
+      }
+
+      /** Responses per second over the whole run. */
+      public double throughput() {
+         return requests * 1e9 / Math.max(1, nanos);
+      }
+
+      /** Latency of single requests in nanoseconds. */
+      public RpnMetrics.Histogram latencies() {
+         return latencies;
+      }
+
+      @Override
+      public String toString() {
+         return String.format("%d requests (%d errors) in %.3f s: %.0f requests/s, latency p50 %.1f us,"
+            + " p99 %.1f us, p99.9 %.1f us, max %.1f us", requests, errors, nanos / 1e9, throughput(),
+            latencies.percentile(50) / 1e3, latencies.percentile(99) / 1e3, latencies.percentile(99.9) / 1e3,
+            latencies.max() / 1e3);
+      }
+   }
+
+   private RpnLoadClient() {
+   }
+
+   /** Runs a load test against a running server and prints the report.
+    * Usage: <code>RpnLoadClient port|unix:path [connections] [requests] [window] [expression]</code>.
+    * @param args address, number of connections, requests per connection,
+    *     requests in flight per connection and the expression to send
+    * @throws Exception if the server cannot be reached
+    */
+   public static void main (String[] args) throws Exception {
+      if (args.length < 1) {
+         System.err.println("Usage: RpnLoadClient port|unix:path [connections] [requests] [window] [expression]");
+         System.exit(2);
+      }
+      int connections = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+      int requests = args.length > 2 ? Integer.parseInt(args[2]) : 1000000;
+      int window = args.length > 3 ? Integer.parseInt(args[3]) : 128;
+      String expression = args.length > 4 ? args[4] : "35 10 -3 + / 2 * 7 -";
+      System.out.println(run(RpnServer.address(args[0]), connections, requests, window, expression));
+   }
+
+   /** Sends the same expression over several pipelined connections.
+    * @param address server address
+    * @param connections number of connections
+    * @param requests requests per connection
+    * @param window largest number of requests in flight per connection
+    * @param expression expression to send
+    * @return throughput and latencies
+    * @throws IOException if a connection fails
+    * @throws InterruptedException if interrupted while waiting for the connections
+    */
+   public static Report run (SocketAddress address, int connections, int requests, int window, String expression)
+         throws IOException, InterruptedException {
+      byte[] request = (expression + "\n").getBytes(StandardCharsets.UTF_8);
+      RpnMetrics.Histogram latencies = new RpnMetrics.Histogram();
+      AtomicLong received = new AtomicLong();
+      AtomicLong errors = new AtomicLong();
+      AtomicReference<IOException> failure = new AtomicReference<>();
+      Thread[] threads = new Thread[2 * connections];
+      SocketChannel[] channels = new SocketChannel[connections];
+      long start = System.nanoTime();
+      for (int c = 0; c < connections; c++) {
+         SocketChannel channel = address instanceof UnixDomainSocketAddress
+            ? SocketChannel.open(StandardProtocolFamily.UNIX) : SocketChannel.open();
+         channel.connect(address);
+         channels[c] = channel;
+         Semaphore inFlight = new Semaphore(window);
+         AtomicLongArray sent = new AtomicLongArray(window);
+         Thread[] partner = new Thread[1];
+         Thread sender = new Thread(() -> {
+            try {
+               for (int i = 0; i < requests; i++) {
+                  inFlight.acquire();
+                  sent.set(i % window, System.nanoTime());
+                  ByteBuffer out = ByteBuffer.wrap(request);
+                  while (out.hasRemaining()) {
+                     channel.write(out);
+                  }
+               }
+            } catch (IOException e) {
+               fail(e, failure, channel, partner[0]);
+            } catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+            }
+         });
+         Thread receiver = new Thread(() -> {
+            ByteBuffer in = ByteBuffer.allocate(64 * 1024);
+            byte[] buffer = in.array();
+            int i = 0;
+            boolean error = false;
+            boolean lineStart = true;
+            try {
+               while (i < requests) {
+                  in.clear();
+                  int n = channel.read(in);
+                  if (n < 0) {
+                     throw new IOException("Server closed the connection after " + i + " responses");
+                  }
+                  for (int b = 0; b < n; b++) {
+                     if (lineStart) {
+                        error = buffer[b] == 'E';
+                        lineStart = false;
+                     }
+                     if (buffer[b] == '\n') {
+                        latencies.record(System.nanoTime() - sent.get(i % window));
+                        inFlight.release();
+                        if (error) {
+                           errors.incrementAndGet();
+                        }
+                        received.incrementAndGet();
+                        lineStart = true;
+                        i++;
+                     }
+                  }
+               }
+            } catch (IOException e) {
+               fail(e, failure, channel, sender);
+            }
+         });
+         partner[0] = receiver;
+         threads[2 * c] = sender;
+         threads[2 * c + 1] = receiver;
+      }
+      for (Thread thread : threads) {
+         thread.start();
+      }
+      for (Thread thread : threads) {
+         thread.join();
+      }
+      long nanos = System.nanoTime() - start;
+      for (SocketChannel channel : channels) {
+         channel.close();
+      }
+      if (failure.get() != null) {
+         throw failure.get();
+      }
+      return new Report(received.get(), errors.get(), nanos, latencies);
+   }
+
+   /** Records the first failure, closes the connection and interrupts the
+    * other thread of the connection, which may wait for in-flight permits.
+    * Failures caused by the close itself are not recorded.
+    */
+   private static void fail (IOException e, AtomicReference<IOException> failure, SocketChannel channel,
+         Thread partner) {
+      if (!(e instanceof ClosedChannelException)) {
+         failure.compareAndSet(null, e);
+      }
+      try {
+         channel.close();
+      } catch (IOException ignored) {
+         // the first failure is the one reported
+      }
+      partner.interrupt();
+   }
+
+}
@@ -0,0 +1,375 @@
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/** Opt-in statistics of <code>LongStack.interpret</code> and
+ * <code>LongStack.tryInterpret</code>: tokens processed, occurrences of
+ * each operator, the maximum stack depth of each expression, errors by
+ * kind and the latency of each call. While disabled, which is the
+ * default, the only cost is one test of a volatile flag per call.
+ * Recording is lock-free. The token statistics of an expression are
+ * computed once and kept with its cached program.
+ * Only these two methods are measured, and <code>RpnServer</code>, which
+ * evaluates each request line with <code>tryInterpret</code>;
+ * <code>interpretInfix</code>, <code>interpretAll</code> and
+ * <code>RpnStreamInterpreter</code> are not.
+ * The statistics are also available over JMX, see <code>RpnMetricsMXBean</code>.
+ */
+public final class RpnMetrics implements RpnMetricsMXBean {
+
+   /** Tested by <code>LongStack</code> on every call. */
+   static volatile boolean enabled;
+
+   private static final RpnMetrics INSTANCE = new RpnMetrics();
+   private static final String OBJECT_NAME = "LongStack:type=RpnMetrics";
+   private static final ThreadLocal<RpnResult> RESULT = ThreadLocal.withInitial(RpnResult::new);
+   private static boolean registered;
+
+   private final LongAdder calls = new LongAdder();
+   private final LongAdder tokens = new LongAdder();
+   private final LongAdder[] operators = new LongAdder[RpnOperators.CAPACITY];
+   private final LongAdder[] errors = new LongAdder[RpnResult.ErrorKind.values().length];
+   private final Histogram depths = new Histogram();
+   private final Histogram latencies = new Histogram();
+
+   private RpnMetrics() {
+      for (int i = 0; i < operators.length; i++) {
+         operators[i] = new LongAdder();
+      }
+      for (int i = 0; i < errors.length; i++) {
+         errors[i] = new LongAdder();
+      }
+   }
+
+   /** The statistics of this JVM.
+    * @return metrics
+    */
+   public static RpnMetrics get() {
+      return INSTANCE;
+   }
+
+   /** Starts recording and registers the MXBean, if not done yet. */
+   public static void enable() {
+      register();
+      enabled = true;
+   }
+
+   /** Stops recording; the statistics collected so far are kept. */
+   public static void disable() {
+      enabled = false;
+   }
+
+   @Override
+   public boolean isEnabled() {
+      return enabled;
+   }
+
+   @Override
+   public void setEnabled (boolean enabled) {
+      if (enabled) {
+         enable();
+      } else {
+         disable();
+      }
+   }
+
+   @Override
+   public long getCalls() {
+      return calls.sum();
+   }
+
+   @Override
+   public long getTokens() {
+      return tokens.sum();
+   }
+
+   @Override
+   public Map<String, Long> getOperatorCounts() {
+      Map<String, Long> counts = new TreeMap<>();
+      for (int opcode = 0; opcode < operators.length; opcode++) {
+         long count = operators[opcode].sum();
+         String name = count > 0 ? RpnOperators.name((byte) opcode) : null;
+         if (name != null) {
+            counts.put(name, count);
+         }
+      }
+      return counts;
+   }
+
+   @Override
+   public Map<String, Long> getErrorCounts() {
+      Map<String, Long> counts = new TreeMap<>();
+      for (RpnResult.ErrorKind kind : RpnResult.ErrorKind.values()) {
+         counts.put(kind.name(), errors[kind.ordinal()].sum());
+      }
+      return counts;
+   }
+
+   /** Histogram of the maximum stack depth of each expression.
+    * @return depth histogram
+    */
+   public Histogram depthHistogram() {
+      return depths;
+   }
+
+   /** Histogram of the duration of each call in nanoseconds.
+    * @return latency histogram
+    */
+   public Histogram latencyHistogram() {
+      return latencies;
+   }
+
+   @Override
+   public long getMaxDepthP50() {
+      return depths.percentile(50);
+   }
+
+   @Override
+   public long getMaxDepthP99() {
+      return depths.percentile(99);
+   }
+
+   @Override
+   public long getMaxDepthMax() {
+      return depths.max();
+   }
+
+   @Override
+   public long getLatencyP50Nanos() {
+      return latencies.percentile(50);
+   }
+
+   @Override
+   public long getLatencyP99Nanos() {
+      return latencies.percentile(99);
+   }
+
+   @Override
+   public long getLatencyP999Nanos() {
+      return latencies.percentile(99.9);
+   }
+
+   @Override
+   public long getLatencyMaxNanos() {
+      return latencies.max();
+   }
+
+   @Override
+   public void reset() {
+      calls.reset();
+      tokens.reset();
+      for (LongAdder counter : operators) {
+         counter.reset();
+      }
+      for (LongAdder counter : errors) {
+         counter.reset();
+      }
+      depths.reset();
+      latencies.reset();
+   }
+
+   /** <code>LongStack.interpret</code> with recording. */
+   static long interpret (String pol) {
+      RpnResult result = RESULT.get();
+      if (!tryInterpret(pol, result)) {
+         throw result.toException();
+      }
+      return result.value();
+   }
+
+   /** <code>LongStack.tryInterpret</code> with recording. */
+   static boolean tryInterpret (String pol, RpnResult result) {
+      long start = System.nanoTime();
+      RpnProgram program = LongStack.programCache().lookup(pol);
+      boolean ok = program.tryRun(null, result);
+      INSTANCE.record(program.profile(), ok ? null : result.errorKind(), System.nanoTime() - start);
+      return ok;
+   }
+
+   private void record (Profile profile, RpnResult.ErrorKind error, long nanos) {
+      calls.increment();
+      latencies.record(nanos);
+      tokens.add(profile.tokens);
+      for (int i = 0; i < profile.opcodes.length; i++) {
+         operators[profile.opcodes[i]].add(profile.counts[i]);
+      }
+      depths.record(profile.maxDepth);
+      if (error != null) {
+         errors[error.ordinal()].increment();
+      }
+   }
+
+   private static synchronized void register() {
+      if (registered) {
+         return;
+      }
+      try {
+         ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, new ObjectName(OBJECT_NAME));
+         registered = true;
+      } catch (JMException e) {
+         throw new IllegalStateException("Cannot register " + OBJECT_NAME, e);
+      }
+   }
+
+   /** Token statistics of an expression: number of tokens, occurrences of
+    * each operator and the largest stack depth reached, counted on the
+    * source, so the optimizer does not hide folded operators. An incorrect
+    * expression is counted up to the token where compilation failed, that
+    * token included.
+    */
+   static final class Profile {
+      final int tokens;
+      final int maxDepth;
+      final byte[] opcodes;
+      final int[] counts;
+
+      private Profile (int tokens, int maxDepth, byte[] opcodes, int[] counts) {
+         this.tokens = tokens;
+         this.maxDepth = maxDepth;
+         this.opcodes = opcodes;
+         this.counts = counts;
+      }
+
+      /** Statistics of the first <code>limit</code> tokens of pol. */
+      static Profile of (String pol, int limit) {
+         int tokens = 0;
+         int depth = 0;
+         int maxDepth = 0;
+         int[] perOpcode = new int[RpnOperators.CAPACITY];
+         int n = pol == null ? 0 : pol.length();
+         int i = 0;
+         while (i < n && tokens < limit) {
+            if (RpnProgram.isSpace(pol.charAt(i))) {
+               i++;
+               continue;
+            }
+            int start = i;
+            while (i < n && !RpnProgram.isSpace(pol.charAt(i))) {
+               i++;
+            }
+            tokens++;
+            byte opcode = RpnOperators.resolve(pol, start, i);
+            if (opcode == RpnProgram.PUSH) {
+               depth++;
+            } else {
+               perOpcode[opcode]++;
+               depth = Math.max(0, depth + RpnOperators.pushes(opcode) - RpnOperators.pops(opcode));
+            }
+            maxDepth = Math.max(maxDepth, depth);
+         }
+         int used = 0;
+         for (int count : perOpcode) {
+            used += count > 0 ? 1 : 0;
+         }
+         byte[] opcodes = new byte[used];
+         int[] counts = new int[used];
+         used = 0;
+         for (int opcode = 0; opcode < perOpcode.length; opcode++) {
+            if (perOpcode[opcode] > 0) {
+               opcodes[used] = (byte) opcode;
+               counts[used++] = perOpcode[opcode];
+            }
+         }
+         return new Profile(tokens, maxDepth, opcodes, counts);
+      }
+   }
+
+   /** Histogram of non-negative values with lock-free recording, in the
+    * manner of HdrHistogram: values below 16 have a bucket each, larger
+    * values fall into 16 buckets per power of two, so every value is
+    * known within 1/16 of itself.
+    * Source: G. Tene, HdrHistogram, http://hdrhistogram.org/
+    */
+   public static final class Histogram {
+
+      private static final int SUB_BITS = 4;
+      private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+      private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BITS) * SUB_BUCKETS);
+      private final AtomicLong max = new AtomicLong();
+
+      /** Adds a value; negative values are counted as 0.
+       * @param value value to record
+       */
+      public void record (long value) {
+         value = Math.max(0, value);
+         counts.incrementAndGet(bucket(value));
+         if (value > max.get()) {
+            max.accumulateAndGet(value, Math::max);
+         }
+      }
+
+      /** Number of recorded values.
+       * @return count
+       */
+      public long count() {
+         long total = 0;
+         for (int i = 0; i < counts.length(); i++) {
+            total += counts.get(i);
+         }
+         return total;
+      }
+
+      /** Largest recorded value.
+       * @return maximum, 0 if nothing was recorded
+       */
+      public long max() {
+         return max.get();
+      }
+
+      /** Value below or at which the given percentage of values lie, as
+       * the upper end of its bucket (never more than the maximum).
+       * @param percent percentage from 0 to 100
+       * @return percentile, 0 if nothing was recorded
+       */
+      public long percentile (double percent) {
+         long total = count();
+         if (total == 0) {
+            return 0;
+         }
+         long target = Math.max(1, (long) Math.ceil(total * Math.min(100, Math.max(0, percent)) / 100));
+         long seen = 0;
+         for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+               return Math.min(max(), lowest(i + 1) - 1);
+            }
+         }
+         return max();
+      }
+
+      /** Sets all counts to zero. */
+      public void reset() {
+         for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+         }
+         max.set(0);
+      }
+
+      private static int bucket (long value) {
+         if (value < SUB_BUCKETS) {
+            return (int) value;
+         }
+         int exponent = 63 - Long.numberOfLeadingZeros(value);
+         return (exponent - SUB_BITS + 1) * SUB_BUCKETS + (int) ((value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1));
+      }
+
+      /** Smallest value of bucket i. */
+      private static long lowest (int i) {
+         if (i < SUB_BUCKETS) {
+            return i;
+         }
+         int exponent = i / SUB_BUCKETS + SUB_BITS - 1;
+         if (exponent > 62) {
+            return Long.MAX_VALUE;
+         }
+         return (long) (SUB_BUCKETS + i % SUB_BUCKETS) << (exponent - SUB_BITS);
+      }
+   }
+
+}
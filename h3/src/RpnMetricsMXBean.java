@@ -0,0 +1,42 @@
+import java.util.Map;
+
+/** Management interface of <code>RpnMetrics</code>, registered with the
+ * platform MBean server as <code>LongStack:type=RpnMetrics</code> when
+ * metrics are first enabled.
+ */
+public interface RpnMetricsMXBean {
+
+   boolean isEnabled();
+
+   void setEnabled (boolean enabled);
+
+   /** Number of interpreted expressions. */
+   long getCalls();
+
+   /** Number of tokens in the interpreted expressions. */
+   long getTokens();
+
+   /** Number of times each operator occurred, by operator name. */
+   Map<String, Long> getOperatorCounts();
+
+   /** Number of incorrect expressions, by error kind. */
+   Map<String, Long> getErrorCounts();
+
+   long getMaxDepthP50();
+
+   long getMaxDepthP99();
+
+   long getMaxDepthMax();
+
+   long getLatencyP50Nanos();
+
+   long getLatencyP99Nanos();
+
+   long getLatencyP999Nanos();
+
+   long getLatencyMaxNanos();
+
+   /** Sets all counters and histograms to zero. */
+   void reset();
+
+}
@@ -0,0 +1,282 @@
+import java.util.Arrays;
+import java.util.function.LongBinaryOperator;
+import java.util.function.LongUnaryOperator;
+
+/** Registry of the operators that RPN expressions may use. Every operator
+ * has a small integer opcode; a token is resolved to its opcode once, when
+ * the expression is compiled, and evaluation dispatches through dense
+ * arrays indexed by opcode, without any lookup by name.
+ * <p>Besides + - * / the following operators are predefined:
+ * <ul>
+ * <li>binary: <code>%</code> (remainder), <code>min</code>, <code>max</code>,
+ *     <code>pow</code>, <code>&amp;</code>, <code>|</code>, <code>^</code>
+ *     (exclusive or), <code>&lt;&lt;</code>, <code>&gt;&gt;</code>, <code>&gt;&gt;&gt;</code>;</li>
+ * <li>unary: <code>neg</code>, <code>abs</code>, <code>~</code>;</li>
+ * <li>stack words: <code>dup</code>, <code>swap</code>, <code>drop</code>,
+ *     <code>over</code>.</li>
+ * </ul>
+ * More binary and unary operators can be registered and unregistered
+ * again; an operator name takes precedence over a variable of the same
+ * name. An operator signals an illegal operation by throwing
+ * ArithmeticException, which is reported like a division by zero.
+ */
+public final class RpnOperators {
+
+   static final byte DUP = 8;
+   static final byte SWAP = 9;
+   static final byte DROP = 10;
+   static final byte OVER = 11;
+   static final int FIRST_REGISTERED = 12;
+   static final int CAPACITY = 128;
+
+   /** Binary operators by opcode, null for other opcodes. */
+   static final LongBinaryOperator[] BINARY = new LongBinaryOperator[CAPACITY];
+   /** Unary operators by opcode, null for other opcodes. */
+   static final LongUnaryOperator[] UNARY = new LongUnaryOperator[CAPACITY];
+
+   private static final byte[] POPS = new byte[CAPACITY];
+   private static final byte[] PUSHES = new byte[CAPACITY];
+   private static final byte[] SINGLE = new byte[128];
+
+   /** Names by opcode, replaced on every registration so that readers
+    * see completely initialized entries.
+    */
+   private static volatile String[] names = new String[0];
+   private static int next = FIRST_REGISTERED;
+
+   static {
+      define(RpnProgram.ADD, "+", 2, 1);
+      define(RpnProgram.SUB, "-", 2, 1);
+      define(RpnProgram.MUL, "*", 2, 1);
+      define(RpnProgram.DIV, "/", 2, 1);
+      BINARY[RpnProgram.ADD] = (a, b) -> a + b;
+      BINARY[RpnProgram.SUB] = (a, b) -> a - b;
+      BINARY[RpnProgram.MUL] = (a, b) -> a * b;
+      BINARY[RpnProgram.DIV] = (a, b) -> {
+         if (b == 0) {
+            throw new ArithmeticException("Division by zero: cannot divide " + a + " by zero.");
+         }
+         return a / b;
+      };
+      define(DUP, "dup", 1, 2);
+      define(SWAP, "swap", 2, 2);
+      define(DROP, "drop", 1, 0);
+      define(OVER, "over", 2, 3);
+
+      add("%", (a, b) -> {
+         if (b == 0) {
+            throw new ArithmeticException("Division by zero: cannot compute the remainder of " + a + " by zero.");
+         }
+         return a % b;
+      });
+      add("min", Math::min);
+      add("max", Math::max);
+      add("pow", RpnOperators::pow);
+      add("&", (a, b) -> a & b);
+      add("|", (a, b) -> a | b);
+      add("^", (a, b) -> a ^ b);
+      add("<<", (a, b) -> a << b);
+      add(">>", (a, b) -> a >> b);
+      add(">>>", (a, b) -> a >>> b);
+      add("neg", a -> -a);
+      add("abs", Math::abs);
+      add("~", a -> ~a);
+   }
+
+   private RpnOperators() {
+   }
+
+   /** Registers a binary operator. It takes the two topmost elements,
+    * the top being the second argument, and pushes the result.
+    * The operator must be pure, giving the same result for the same
+    * arguments without side effects: the optimizer applies it to constant
+    * arguments once, when the expression is compiled.
+    * @param name token that denotes the operator
+    * @param operator the operation
+    * @throws IllegalArgumentException if the name is taken or cannot be a token
+    */
+   public static void register (String name, LongBinaryOperator operator) {
+      add(name, operator);
+      removeInvalid();
+   }
+
+   /** Registers a unary operator that replaces the top element.
+    * The operator must be pure, giving the same result for the same
+    * arguments without side effects: the optimizer applies it to constant
+    * arguments once, when the expression is compiled.
+    * @param name token that denotes the operator
+    * @param operator the operation
+    * @throws IllegalArgumentException if the name is taken or cannot be a token
+    */
+   public static void register (String name, LongUnaryOperator operator) {
+      add(name, operator);
+      removeInvalid();
+   }
+
+   /** Removes a registered operator. Expressions compiled before keep
+    * using it, but new ones no longer know the name; the cached programs
+    * that have the name as a token are dropped, so they are compiled
+    * again; <code>&gt;&gt;</code> does not drop those with <code>&gt;&gt;&gt;</code>. The opcode is not reused.
+    * @param name token that denotes the operator
+    * @throws IllegalArgumentException if the name is not a registered
+    *     operator, or one of + - * / and the stack words
+    */
+   public static void unregister (String name) {
+      synchronized (RpnOperators.class) {
+         byte opcode = resolve(name, 0, name.length());
+         if (opcode == RpnProgram.PUSH) {
+            throw new IllegalArgumentException("Operator " + name + " is not defined");
+         }
+         if (opcode < FIRST_REGISTERED) {
+            throw new IllegalArgumentException("Operator " + name + " is built in and cannot be removed");
+         }
+         publish(opcode, null);
+         if (name.length() == 1 && name.charAt(0) < SINGLE.length) {
+            SINGLE[name.charAt(0)] = RpnProgram.PUSH;
+         }
+      }
+      LongStack.programCache().removeIf(program -> RpnProgram.hasToken(program.source(), name));
+      LongStack.infixCache().removeIf(program -> RpnInfixCompiler.hasToken(program.source(), name));
+   }
+
+   /** Whether a token denotes an operator.
+    * @param name token
+    * @return true if the token is an operator
+    */
+   public static boolean isDefined (String name) {
+      return resolve(name, 0, name.length()) != RpnProgram.PUSH;
+   }
+
+   /** Opcode of the operator s[start, end).
+    * @return opcode, or PUSH if the token is not an operator
+    */
+   static byte resolve (CharSequence s, int start, int end) {
+      String[] current = names;
+      int length = end - start;
+      if (length == 1) {
+         char c = s.charAt(start);
+         return c < SINGLE.length ? SINGLE[c] : RpnProgram.PUSH;
+      }
+      for (int opcode = 0; opcode < current.length; opcode++) {
+         String name = current[opcode];
+         if (name != null && name.length() == length && matches(name, s, start)) {
+            return (byte) opcode;
+         }
+      }
+      return RpnProgram.PUSH;
+   }
+
+   /** Opcode of a one-character operator, PUSH if there is none. */
+   static byte opcode (char c) {
+      String[] current = names;     // volatile read, makes SINGLE up to date
+      return c < SINGLE.length && current.length > 0 ? SINGLE[c] : RpnProgram.PUSH;
+   }
+
+   /** Number of elements the operator takes from the stack. */
+   static int pops (byte opcode) {
+      return POPS[opcode];
+   }
+
+   /** Number of elements the operator leaves on the stack. */
+   static int pushes (byte opcode) {
+      return PUSHES[opcode];
+   }
+
+   /** Whether the operator may fail at run time: division and every
+    * registered operator, which may throw ArithmeticException.
+    */
+   static boolean canFail (byte opcode) {
+      return opcode == RpnProgram.DIV || opcode >= FIRST_REGISTERED;
+   }
+
+   /** Name of the operator, null if it has been unregistered. */
+   static String name (byte opcode) {
+      return names[opcode];
+   }
+
+   /** Integer power by repeated squaring; overflow wraps around like *.
+    * @throws ArithmeticException if the exponent is negative
+    */
+   static long pow (long base, long exponent) {
+      if (exponent < 0) {
+         throw new ArithmeticException("Negative exponent: cannot raise " + base + " to the power " + exponent + ".");
+      }
+      long result = 1;
+      while (exponent != 0) {
+         if ((exponent & 1) != 0) {
+            result *= base;
+         }
+         base *= base;
+         exponent >>>= 1;
+      }
+      return result;
+   }
+
+   private static synchronized void add (String name, LongBinaryOperator operator) {
+      byte opcode = allocate(name, 2);
+      BINARY[opcode] = operator;
+      publish(opcode, name);
+   }
+
+   private static synchronized void add (String name, LongUnaryOperator operator) {
+      byte opcode = allocate(name, 1);
+      UNARY[opcode] = operator;
+      publish(opcode, name);
+   }
+
+   /** Drops the cached incorrect expressions, which may use the name of
+    * an operator that was just registered. Not called for the predefined
+    * operators, so that loading this class does not load LongStack.
+    */
+   private static void removeInvalid() {
+      LongStack.programCache().removeInvalid();
+      LongStack.infixCache().removeInvalid();
+   }
+
+   private static void define (byte opcode, String name, int pops, int pushes) {
+      POPS[opcode] = (byte) pops;
+      PUSHES[opcode] = (byte) pushes;
+      publish(opcode, name);
+   }
+
+   private static byte allocate (String name, int pops) {
+      if (name == null || name.isEmpty() || name.chars().anyMatch(c -> RpnProgram.isSpace((char) c))) {
+         throw new IllegalArgumentException("Illegal operator name \"" + name + "\"");
+      }
+      char first = name.charAt(0);
+      char second = name.length() > 1 ? name.charAt(1) : ' ';
+      if (Character.isDigit(first) || ((first == '-' || first == '+') && Character.isDigit(second))) {
+         throw new IllegalArgumentException("Operator name " + name + " would be read as a number");
+      }
+      if (isDefined(name)) {
+         throw new IllegalArgumentException("Operator " + name + " is already defined");
+      }
+      if (next == CAPACITY) {
+         throw new IllegalStateException("No room for operator " + name + ", " + CAPACITY + " opcodes in use");
+      }
+      byte opcode = (byte) next++;
+      POPS[opcode] = (byte) pops;
+      PUSHES[opcode] = 1;
+      return opcode;
+   }
+
+   private static void publish (byte opcode, String name) {
+      if (name != null && name.length() == 1 && name.charAt(0) < SINGLE.length) {
+         SINGLE[name.charAt(0)] = opcode;
+      }
+      String[] updated = Arrays.copyOf(names, Math.max(names.length, opcode + 1));
+      updated[opcode] = name;
+      names = updated;
+   }
+
+   private static boolean matches (String name, CharSequence s, int start) {
+      for (int i = 0; i < name.length(); i++) {
+         if (name.charAt(i) != s.charAt(start + i)) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+}
+
@@ -0,0 +1,225 @@
+import java.util.Arrays;
+import java.util.function.LongBinaryOperator;
+import java.util.function.LongUnaryOperator;
+
+/** Peephole optimizer for compiled RPN programs. Works in one pass over
+ * the instructions, keeping for every element of the (simulated) stack
+ * the range of output instructions that computes it. Because the program
+ * is postfix, the operands of an operation are always the last two ranges,
+ * so folding or dropping one of them only touches the end of the output.
+ * <ul>
+ * <li>constant operands are folded, registered operators included (they
+ *     must be pure), except for division by zero and
+ *     operators that reject their operands, which are left to fail at
+ *     run time with the usual message;</li>
+ * <li><code>x 0 +</code>, <code>0 x +</code>, <code>x 0 -</code>,
+ *     <code>x 1 *</code>, <code>1 x *</code> and <code>x 1 /</code>
+ *     are replaced by <code>x</code>;</li>
+ * <li>multiplication by 2^k becomes a left shift and division by 2^k
+ *     a rounding-corrected arithmetic shift;</li>
+ * <li>stack words on constants are resolved: <code>dup</code> and
+ *     <code>over</code> copy the constant, <code>swap</code> exchanges
+ *     the two pushes and <code>drop</code> removes the push.</li>
+ * </ul>
+ * A range that ends with a stack word may depend on the elements below
+ * it, so it is only moved over a removed constant if it is self-contained.
+ * All rewrites are exact in two's complement arithmetic, so overflow
+ * wraps around just as in the original program.
+ */
+final class RpnOptimizer {
+
+   private RpnOptimizer() {
+   }
+
+   static RpnProgram optimize (RpnProgram program) {
+      if (!program.isValid()) {
+         return program;
+      }
+      byte[] code = program.code();
+      long[] constants = program.constants();
+      int[] checkTokens = program.checkTokens();
+      int[] keptChecks = new int[checkTokens.length];
+      int checks = 0;
+      int kept = 0;
+
+      // Output instructions, each with its own operand slot.
+      byte[] ops = new byte[code.length];
+      long[] args = new long[code.length];
+      int length = 0;
+
+      // Simulated stack: where each element starts in the output, whether
+      // it is a single constant, and whether its range computes it from
+      // nothing below it.
+      int[] starts = new int[program.maxDepth()];
+      boolean[] constant = new boolean[program.maxDepth()];
+      boolean[] contained = new boolean[program.maxDepth()];
+      int sp = -1;
+
+      int k = 0;
+      for (byte opcode : code) {
+         if (opcode == RpnProgram.PUSH || opcode == RpnProgram.LOAD) {
+            sp++;
+            starts[sp] = length;
+            constant[sp] = opcode == RpnProgram.PUSH;
+            contained[sp] = true;
+            ops[length] = opcode;
+            args[length++] = constants[k++];
+            continue;
+         }
+         if (opcode == RpnProgram.SHL || opcode == RpnProgram.DIVP2) {
+            constant[sp] = false;
+            ops[length] = opcode;
+            args[length++] = constants[k++];
+            continue;
+         }
+         if (opcode == RpnOperators.DUP || opcode == RpnOperators.OVER) {
+            int source = opcode == RpnOperators.DUP ? sp : sp - 1;
+            sp++;
+            starts[sp] = length;
+            constant[sp] = constant[source];
+            contained[sp] = constant[source];
+            ops[length] = constant[source] ? RpnProgram.PUSH : opcode;
+            args[length++] = constant[source] ? args[starts[source]] : 0;
+            continue;
+         }
+         if (opcode == RpnOperators.SWAP) {
+            if (constant[sp] && constant[sp - 1]) {
+               long top = args[starts[sp]];
+               args[starts[sp]] = args[starts[sp - 1]];
+               args[starts[sp - 1]] = top;
+            } else {
+               ops[length] = opcode;
+               args[length++] = 0;
+               starts[sp] = length - 1;
+               constant[sp] = constant[sp - 1] = false;
+               contained[sp] = contained[sp - 1] = false;
+            }
+            continue;
+         }
+         if (opcode == RpnOperators.DROP) {
+            if (constant[sp]) {
+               length = starts[sp];
+            } else {
+               ops[length] = opcode;
+               args[length++] = 0;
+               constant[sp - 1] = false;
+               contained[sp - 1] &= contained[sp];
+            }
+            sp--;
+            continue;
+         }
+
+         int check = RpnOperators.canFail(opcode) ? checks++ : -1;
+         LongUnaryOperator unary = RpnOperators.UNARY[opcode];
+         if (unary != null) {
+            if (constant[sp] && fold(unary, args, starts[sp])) {
+               continue;
+            }
+            keptChecks[kept++] = checkTokens[check];
+            ops[length] = opcode;
+            args[length++] = 0;
+            constant[sp] = false;
+            continue;
+         }
+
+         int right = starts[sp];
+         int left = starts[sp - 1];
+         boolean rightConstant = constant[sp];
+         boolean leftConstant = constant[sp - 1];
+         boolean rightContained = contained[sp];
+         long b = rightConstant ? args[right] : 0;
+         long a = leftConstant ? args[left] : 0;
+         sp--;
+
+         if (leftConstant && rightConstant && fold(RpnOperators.BINARY[opcode], args, left, b)) {
+            length = left + 1;
+            continue;
+         }
+         if (rightConstant && (b == 0 && (opcode == RpnProgram.ADD || opcode == RpnProgram.SUB)
+               || b == 1 && (opcode == RpnProgram.MUL || opcode == RpnProgram.DIV))) {
+            length = right;
+            continue;
+         }
+         if (leftConstant && rightContained
+               && (a == 0 && opcode == RpnProgram.ADD || a == 1 && opcode == RpnProgram.MUL)) {
+            // Drop the constant in front of the right operand.
+            System.arraycopy(ops, right, ops, left, length - right);
+            System.arraycopy(args, right, args, left, length - right);
+            length -= right - left;
+            constant[sp] = false;
+            continue;
+         }
+         if (opcode == RpnProgram.MUL && leftConstant && rightContained && isPowerOfTwo(a)) {
+            System.arraycopy(ops, right, ops, left, length - right);
+            System.arraycopy(args, right, args, left, length - right);
+            length -= right - left;
+            ops[length] = RpnProgram.SHL;
+            args[length++] = Long.numberOfTrailingZeros(a);
+         } else if ((opcode == RpnProgram.MUL || opcode == RpnProgram.DIV) && rightConstant && isPowerOfTwo(b)) {
+            length = right;
+            ops[length] = opcode == RpnProgram.MUL ? RpnProgram.SHL : RpnProgram.DIVP2;
+            args[length++] = Long.numberOfTrailingZeros(b);
+         } else {
+            if (check >= 0) {
+               keptChecks[kept++] = checkTokens[check];
+            }
+            ops[length] = opcode;
+            args[length++] = 0;
+            contained[sp] &= rightContained;
+         }
+         constant[sp] = false;
+      }
+
+      // Split the operands back into the constant pool and measure the depth.
+      long[] pool = new long[length];
+      int pushes = 0;
+      int depth = 0;
+      int maxDepth = 0;
+      for (int i = 0; i < length; i++) {
+         byte opcode = ops[i];
+         if (opcode == RpnProgram.PUSH || opcode == RpnProgram.LOAD) {
+            maxDepth = Math.max(maxDepth, ++depth);
+            pool[pushes++] = args[i];
+         } else if (opcode == RpnProgram.SHL || opcode == RpnProgram.DIVP2) {
+            pool[pushes++] = args[i];
+         } else {
+            depth += RpnOperators.pushes(opcode) - RpnOperators.pops(opcode);
+            maxDepth = Math.max(maxDepth, depth);
+         }
+      }
+      return new RpnProgram(program.source(), program.variables(), Arrays.copyOf(ops, length),
+         Arrays.copyOf(pool, pushes), Arrays.copyOf(keptChecks, kept), maxDepth,
+         program.removedInstructions() + code.length - length, null);
+   }
+
+   /** Folds a unary operator into the constant at args[at].
+    * @return false if the operator rejects the constant
+    */
+   private static boolean fold (LongUnaryOperator operator, long[] args, int at) {
+      try {
+         args[at] = operator.applyAsLong(args[at]);
+         return true;
+      } catch (ArithmeticException e) {
+         return false;
+      }
+   }
+
+   /** Folds a binary operator into the constant at args[at].
+    * @return false if the operator rejects the operands
+    */
+   private static boolean fold (LongBinaryOperator operator, long[] args, int at, long b) {
+      try {
+         args[at] = operator.applyAsLong(args[at], b);
+         return true;
+      } catch (ArithmeticException e) {
+         return false;
+      }
+   }
+
+   /** Powers of two from 2 to 2^62; 1 is handled as an identity. */
+   private static boolean isPowerOfTwo (long v) {
+      return v > 1 && (v & (v - 1)) == 0;
+   }
+
+}
+
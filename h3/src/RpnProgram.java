@@ -0,0 +1,730 @@
+import java.util.Arrays;
+import java.util.function.LongBinaryOperator;
+import java.util.function.LongUnaryOperator;
+
+/** Arithmetic expression in Reverse Polish Notation compiled to a flat,
+ * immutable program: one opcode per token and a pool of the numeric
+ * constants (and variable indexes) in the order they are pushed. The stack
+ * depth is checked once by <code>compile</code>, so running the program
+ * never needs to check for underflow. A program that has been run
+ * <code>RpnJit.THRESHOLD</code> times is translated to JVM bytecode.
+ * Operators other than + - * / are taken from <code>RpnOperators</code>.
+ */
+public final class RpnProgram {
+
+   static final byte PUSH = 0;
+   static final byte ADD = 1;
+   static final byte SUB = 2;
+   static final byte MUL = 3;
+   static final byte DIV = 4;
+   static final byte LOAD = 5;
+   /** Multiplication by 2^k, k is taken from the constant pool. */
+   static final byte SHL = 6;
+   /** Division by 2^k rounding toward zero like /, k is taken from the constant pool. */
+   static final byte DIVP2 = 7;
+
+   /** Number of rows evaluated together by <code>evaluateColumns</code>. */
+   static final int BLOCK = 1024;
+
+   /** Failure of a checked instruction (division or a registered operator),
+    * without a stack trace; the program turns it into its usual error.
+    */
+   static final class Failure extends RuntimeException {
+      private static final long serialVersionUID = 1L;
+
+      /** Which checked instruction failed, counted from 0. */
+      final int check;
+      /** Dividend of a division by zero. */
+      final long dividend;
+      /** Message of the operator's ArithmeticException, null for division by zero. */
+      final String detail;
+
+      Failure (int check, long dividend, String detail) {
+         super(null, null, false, false);
+         this.check = check;
+         this.dividend = dividend;
+         this.detail = detail;
+      }
+   }
+
+   private static final ThreadLocal<long[]> SCRATCH = ThreadLocal.withInitial(() -> new long[16]);
+
+   private final String source;
+   private final String[] variables;
+   private final byte[] code;
+   private final long[] constants;
+   private final int[] checkTokens;
+   private final int maxDepth;
+   private final int removed;
+   private final RpnResult error;
+   private volatile RpnJit.Compiled compiled;
+   private int runs;
+   private RpnMetrics.Profile profile;
+
+   RpnProgram (String source, String[] variables, byte[] code, long[] constants, int[] checkTokens,
+         int maxDepth, int removed, RpnResult error) {
+      this.source = source;
+      this.variables = variables;
+      this.code = code;
+      this.constants = constants;
+      this.checkTokens = checkTokens;
+      this.maxDepth = maxDepth;
+      this.removed = removed;
+      this.error = error;
+   }
+
+   /** Compilation of an expression.
+    * @param pol expression in RPN, tokens separated by whitespace
+    * @return program that evaluates <code>pol</code>
+    * @throws RuntimeException if the expression is empty, contains an illegal
+    *     symbol, leaves redundant elements or causes the stack underflow
+    */
+   public static RpnProgram compile (String pol) {
+      return compile(pol, new String[0]);
+   }
+
+   /** Compilation of an expression with named variables. A token that is
+    * neither an operator nor a number is looked up among the variable
+    * names; the value of the variable is pushed when the program runs.
+    * @param pol expression in RPN, tokens separated by whitespace
+    * @param variables variable names, index in this array is the index
+    *     of the value passed to <code>run</code> or <code>evaluateColumns</code>
+    * @return program that evaluates <code>pol</code>
+    * @throws RuntimeException if the expression is empty, contains an illegal
+    *     symbol, leaves redundant elements or causes the stack underflow
+    */
+   public static RpnProgram compile (String pol, String... variables) {
+      RpnProgram program = parse(pol, variables);
+      if (program.error != null) {
+         throw program.error.toException();
+      }
+      return program;
+   }
+
+   /** Compilation of an expression in infix notation, such as
+    * <code>(x + 3) * -y</code>, to the same program as the equivalent RPN
+    * expression; see <code>RpnInfixCompiler</code> for the syntax.
+    * @param infix expression in infix notation
+    * @param variables variable names, as for <code>compile</code>
+    * @return program that evaluates <code>infix</code>
+    * @throws RuntimeException if the expression is empty, contains an illegal
+    *     symbol or is not well formed
+    */
+   public static RpnProgram compileInfix (String infix, String... variables) {
+      RpnProgram program = RpnInfixCompiler.parse(infix, variables);
+      if (program.error != null) {
+         throw program.error.toException();
+      }
+      return program;
+   }
+
+   /** Compilation that records an incorrect expression in the returned
+    * program instead of throwing; running such a program reports the error.
+    */
+   static RpnProgram parse (String pol, String... variables) {
+      variables = checkVariables(pol, variables);
+      if (pol == null) {
+         return failed(pol, variables, RpnResult.ErrorKind.EMPTY, -1, -1, -1);
+      }
+
+      int n = pol.length();
+      byte[] code = new byte[8];
+      long[] constants = new long[8];
+      int[] checkTokens = new int[4];
+      int checks = 0;
+      int length = 0;
+      int pushes = 0;
+      int depth = 0;
+      int maxDepth = 0;
+      int i = 0;
+      while (i < n) {
+         if (isSpace(pol.charAt(i))) {
+            i++;
+            continue;
+         }
+         int start = i;
+         while (i < n && !isSpace(pol.charAt(i))) {
+            i++;
+         }
+         if (length == code.length) {
+            code = Arrays.copyOf(code, length * 2);
+         }
+
+         byte opcode = RpnOperators.resolve(pol, start, i);
+         if (opcode != PUSH) {
+            if (depth < RpnOperators.pops(opcode)) {
+               return failed(pol, variables, RpnResult.ErrorKind.UNDERFLOW, length, start, i,
+                  new RpnProgram(pol, variables, Arrays.copyOf(code, length), Arrays.copyOf(constants, pushes),
+                     Arrays.copyOf(checkTokens, checks), maxDepth, 0, null));
+            }
+            if (RpnOperators.canFail(opcode)) {
+               if (checks == checkTokens.length) {
+                  checkTokens = Arrays.copyOf(checkTokens, checks * 2);
+               }
+               checkTokens[checks++] = length;
+            }
+            depth += RpnOperators.pushes(opcode) - RpnOperators.pops(opcode);
+            maxDepth = Math.max(maxDepth, depth);
+            code[length++] = opcode;
+            continue;
+         }
+
+         // Parse the token in place, accumulating negatively like Long.parseLong
+         // so that Long.MIN_VALUE is representable and overflow is detected.
+         int pos = start;
+         boolean negative = false;
+         char first = pol.charAt(pos);
+         if (first == '-' || first == '+') {
+            negative = first == '-';
+            pos++;
+         }
+         long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+         long result = 0;
+         boolean valid = pos < i;
+         for (; valid && pos < i; pos++) {
+            int digit = digit(pol.charAt(pos));
+            if (digit < 0 || result < limit / 10) {
+               valid = false;
+            } else {
+               result *= 10;
+               valid = result >= limit + digit;
+               result -= digit;
+            }
+         }
+         if (valid) {
+            code[length] = PUSH;
+            result = negative ? result : -result;
+         } else {
+            result = variable(variables, pol, start, i);
+            if (result < 0) {
+               return failed(pol, variables, RpnResult.ErrorKind.ILLEGAL_TOKEN, length, start, i,
+                  new RpnProgram(pol, variables, Arrays.copyOf(code, length), Arrays.copyOf(constants, pushes),
+                     Arrays.copyOf(checkTokens, checks), maxDepth, 0, null));
+            }
+            code[length] = LOAD;
+         }
+         if (pushes == constants.length) {
+            constants = Arrays.copyOf(constants, pushes * 2);
+         }
+         constants[pushes++] = result;
+         length++;
+         maxDepth = Math.max(maxDepth, ++depth);
+      }
+
+      if (length == 0) {
+         return failed(pol, variables, RpnResult.ErrorKind.EMPTY, -1, -1, -1);
+      }
+      RpnProgram program = new RpnProgram(pol, variables, Arrays.copyOf(code, length),
+         Arrays.copyOf(constants, pushes), Arrays.copyOf(checkTokens, checks), maxDepth, 0, null);
+      if (depth != 1) {
+         return failed(pol, variables, RpnResult.ErrorKind.REDUNDANT_ELEMENTS, length, -1, -1, program);
+      }
+      return program;
+   }
+
+   /** Copy of the variable names, checked to be distinct tokens. */
+   static String[] checkVariables (String pol, String[] variables) {
+      variables = variables.clone();
+      for (int v = 0; v < variables.length; v++) {
+         String name = variables[v];
+         if (name == null || name.isEmpty() || name.chars().anyMatch(c -> isSpace((char) c))) {
+            throw new IllegalArgumentException("Illegal variable name \"" + name + "\" for expression: " + pol);
+         }
+         for (int w = 0; w < v; w++) {
+            if (name.equals(variables[w])) {
+               throw new IllegalArgumentException("Duplicate variable name " + name + " for expression: " + pol);
+            }
+         }
+      }
+      return variables;
+   }
+
+   /** Program that reports the given error when run. */
+   static RpnProgram failed (String pol, String[] variables, RpnResult.ErrorKind kind,
+         int tokenIndex, int start, int end) {
+      RpnResult error = new RpnResult();
+      error.fail(pol, kind, tokenIndex, start, end, 0);
+      return new RpnProgram(pol, variables, new byte[0], new long[0], new int[0], 0, 0, error);
+   }
+
+   /** Program that reports the given error when run, unless the correct
+    * prefix before the error fails first. The token-by-token interpreter
+    * reports errors from left to right, so "1 0 / +" is a division by
+    * zero and not an underflow; running the prefix keeps that order.
+    */
+   private static RpnProgram failed (String pol, String[] variables, RpnResult.ErrorKind kind,
+         int tokenIndex, int start, int end, RpnProgram prefix) {
+      RpnResult error = new RpnResult();
+      error.fail(pol, kind, tokenIndex, start, end, 0);
+      return new RpnProgram(pol, variables, prefix.code, prefix.constants, prefix.checkTokens, prefix.maxDepth,
+         0, error);
+   }
+
+   /** Expression this program was compiled from.
+    * @return source expression
+    */
+   public String source() {
+      return source;
+   }
+
+   /** Variable names, in the order their values are expected.
+    * @return copy of the variable names
+    */
+   public String[] variables() {
+      return variables.clone();
+   }
+
+   /** Whether the expression was correct. Only programs created by
+    * <code>RpnProgramCache.lookup</code> can be incorrect; running them
+    * reports the error found by the compiler, or an error of the
+    * instructions before it if that comes first.
+    * @return false if the expression is not correct
+    */
+   public boolean isValid() {
+      return error == null;
+   }
+
+   /** Whether the program has been translated to bytecode because it is hot.
+    * @return true if runs no longer go through the interpreter loop
+    */
+   public boolean isCompiled() {
+      return compiled != null;
+   }
+
+   /** Number of instructions.
+    * @return program length
+    */
+   public int length() {
+      return code.length;
+   }
+
+   /** Number of instructions removed by <code>optimize</code>.
+    * @return difference in length from the compiled expression, 0 if not optimized
+    */
+   public int removedInstructions() {
+      return removed;
+   }
+
+   /** Equivalent program with constant subexpressions folded, identity
+    * operations removed and multiplication and division by powers of two
+    * replaced by shifts. Division by zero, failing operators and overflow
+    * behave exactly as in the original program.
+    * @return optimized program
+    */
+   public RpnProgram optimize() {
+      return RpnOptimizer.optimize(this);
+   }
+
+   /** Largest number of elements on the stack during evaluation.
+    * @return stack depth needed to run this program
+    */
+   public int maxDepth() {
+      return maxDepth;
+   }
+
+   /** Evaluation on a stack that is reused by the calling thread.
+    * @return value of the expression
+    */
+   public long run() {
+      return run(scratch(), null);
+   }
+
+   /** Evaluation on the given operand stack.
+    * @param stack operand stack, at least <code>maxDepth()</code> long
+    * @return value of the expression
+    * @throws RuntimeException on division by zero or a failing operator
+    */
+   public long run (long[] stack) {
+      return run(stack, null);
+   }
+
+   /** Evaluation with variable values on a stack that is reused by the calling thread.
+    * @param values values of the variables, in the order of <code>variables()</code>
+    * @return value of the expression
+    * @throws RuntimeException on division by zero or a failing operator
+    */
+   public long runWith (long... values) {
+      return run(scratch(), values);
+   }
+
+   /** Evaluation with variable values on the given operand stack.
+    * @param stack operand stack, at least <code>maxDepth()</code> long
+    * @param values values of the variables, in the order of <code>variables()</code>
+    * @return value of the expression
+    * @throws RuntimeException on division by zero or a failing operator
+    */
+   public long run (long[] stack, long[] values) {
+      if (error != null) {
+         RpnResult result = new RpnResult();
+         failIncorrect(values, result);
+         throw result.toException();
+      }
+      if (stack.length < maxDepth) {
+         throw new IllegalArgumentException("Operand stack of " + stack.length
+            + " elements is too small, expression needs " + maxDepth + ": " + source);
+      }
+      checkBindings(values == null ? 0 : values.length, "values");
+      try {
+         return evaluate(stack, values);
+      } catch (Failure e) {
+         RpnResult result = new RpnResult();
+         fail(result, e);
+         throw result.toException();
+      }
+   }
+
+   /** Evaluation that reports an incorrect expression, a division by
+    * zero or a failing operator in the result instead of throwing.
+    * @param values values of the variables, null if there are none
+    * @param result holder for the value or the error
+    * @return true if the value was computed
+    */
+   public boolean tryRun (long[] values, RpnResult result) {
+      if (error != null) {
+         failIncorrect(values, result);
+         return false;
+      }
+      checkBindings(values == null ? 0 : values.length, "values");
+      try {
+         result.succeed(source, evaluate(scratch(), values));
+         return true;
+      } catch (Failure e) {
+         fail(result, e);
+         return false;
+      }
+   }
+
+   /** Reports the error of an incorrect program: a division by zero or a
+    * failing operator in the instructions before the compile error if
+    * there is one, the compile error otherwise. The prefix always runs in
+    * the interpreter loop, it is never compiled to bytecode.
+    */
+   private void failIncorrect (long[] values, RpnResult result) {
+      if (code.length > 0 && (values == null ? 0 : values.length) == variables.length) {
+         try {
+            execute(scratch(), values);
+         } catch (Failure e) {
+            fail(result, e);
+            return;
+         }
+      }
+      result.copyFrom(error);
+   }
+
+   private void fail (RpnResult result, Failure failure) {
+      if (failure.detail == null) {
+         result.fail(source, RpnResult.ErrorKind.DIVISION_BY_ZERO, checkTokens[failure.check], -1, -1,
+            failure.dividend);
+      } else {
+         result.fail(source, RpnResult.ErrorKind.ARITHMETIC, checkTokens[failure.check], -1, -1, 0);
+         result.detail(failure.detail);
+      }
+   }
+
+   /** Runs the compiled code once the program is hot, the interpreter loop
+    * before that. Same contract as <code>execute</code>. The run counter is
+    * not synchronized; a lost update only delays compilation.
+    */
+   private long evaluate (long[] stack, long[] values) {
+      RpnJit.Compiled jit = compiled;
+      if (jit == null) {
+         if (++runs != RpnJit.THRESHOLD) {
+            return execute(stack, values);
+         }
+         jit = RpnJit.compile(this);
+         if (jit == null) {
+            return execute(stack, values);
+         }
+         compiled = jit;
+      }
+      return jit.eval(values);
+   }
+
+   /** The interpreter loop.
+    * @return value of the expression
+    * @throws Failure if a division or an operator fails
+    */
+   private long execute (long[] stack, long[] values) {
+      int sp = -1;
+      int check = 0;
+      int k = 0;
+      for (byte opcode : code) {
+         switch (opcode) {
+            case PUSH:
+               stack[++sp] = constants[k++];
+               break;
+            case LOAD:
+               stack[++sp] = values[(int) constants[k++]];
+               break;
+            case ADD:
+               sp--;
+               stack[sp] += stack[sp + 1];
+               break;
+            case SUB:
+               sp--;
+               stack[sp] -= stack[sp + 1];
+               break;
+            case MUL:
+               sp--;
+               stack[sp] *= stack[sp + 1];
+               break;
+            case SHL:
+               stack[sp] <<= constants[k++];
+               break;
+            case DIVP2:
+               stack[sp] = divp2(stack[sp], (int) constants[k++]);
+               break;
+            case DIV:
+               sp--;
+               if (stack[sp + 1] == 0) {
+                  throw new Failure(check, stack[sp], null);
+               }
+               check++;
+               stack[sp] /= stack[sp + 1];
+               break;
+            case RpnOperators.DUP:
+               stack[sp + 1] = stack[sp];
+               sp++;
+               break;
+            case RpnOperators.SWAP:
+               long top = stack[sp];
+               stack[sp] = stack[sp - 1];
+               stack[sp - 1] = top;
+               break;
+            case RpnOperators.DROP:
+               sp--;
+               break;
+            case RpnOperators.OVER:
+               stack[sp + 1] = stack[sp - 1];
+               sp++;
+               break;
+            default:
+               try {
+                  LongUnaryOperator unary = RpnOperators.UNARY[opcode];
+                  if (unary != null) {
+                     stack[sp] = unary.applyAsLong(stack[sp]);
+                  } else {
+                     sp--;
+                     stack[sp] = RpnOperators.BINARY[opcode].applyAsLong(stack[sp], stack[sp + 1]);
+                  }
+               } catch (ArithmeticException e) {
+                  throw new Failure(check, 0, e.getMessage());
+               }
+               check++;
+         }
+      }
+      return stack[0];
+   }
+
+   /** Evaluation over columns of variable values, one result per row.
+    * Every instruction is applied to a block of rows at a time, so the
+    * dispatch cost is paid once per block instead of once per row.
+    * @param columns values of the variables, <code>columns[v][row]</code>
+    *     is the value of variable v in the given row
+    * @param out result for each row; its length is the number of rows
+    * @throws RuntimeException on division by zero or a failing operator, reporting the row
+    */
+   public void evaluateColumns (long[][] columns, long[] out) {
+      if (error != null) {
+         throw error.toException();
+      }
+      checkBindings(columns.length, "columns");
+      int rows = out.length;
+      for (int v = 0; v < columns.length; v++) {
+         if (columns[v].length < rows) {
+            throw new IllegalArgumentException("Column " + variables[v] + " has " + columns[v].length
+               + " rows, expected " + rows + ": " + source);
+         }
+      }
+      long[][] stack = new long[maxDepth][Math.min(BLOCK, rows)];
+      for (int from = 0; from < rows; from += BLOCK) {
+         int n = Math.min(BLOCK, rows - from);
+         int sp = -1;
+         int k = 0;
+         for (byte opcode : code) {
+            if (opcode == PUSH) {
+               Arrays.fill(stack[++sp], 0, n, constants[k++]);
+               continue;
+            }
+            if (opcode == LOAD) {
+               System.arraycopy(columns[(int) constants[k++]], from, stack[++sp], 0, n);
+               continue;
+            }
+            if (opcode == SHL || opcode == DIVP2) {
+               long[] a = stack[sp];
+               int shift = (int) constants[k++];
+               if (opcode == SHL) {
+                  for (int r = 0; r < n; r++) a[r] <<= shift;
+               } else {
+                  for (int r = 0; r < n; r++) a[r] = divp2(a[r], shift);
+               }
+               continue;
+            }
+            if (opcode == RpnOperators.DUP || opcode == RpnOperators.OVER) {
+               System.arraycopy(stack[opcode == RpnOperators.DUP ? sp : sp - 1], 0, stack[sp + 1], 0, n);
+               sp++;
+               continue;
+            }
+            if (opcode == RpnOperators.SWAP) {
+               long[] top = stack[sp];
+               stack[sp] = stack[sp - 1];
+               stack[sp - 1] = top;
+               continue;
+            }
+            if (opcode == RpnOperators.DROP) {
+               sp--;
+               continue;
+            }
+            LongUnaryOperator unary = RpnOperators.UNARY[opcode];
+            if (unary != null) {
+               long[] a = stack[sp];
+               int r = 0;
+               try {
+                  for (; r < n; r++) a[r] = unary.applyAsLong(a[r]);
+               } catch (ArithmeticException e) {
+                  throw rowFailure(e.getMessage(), from + r);
+               }
+               continue;
+            }
+            long[] a = stack[--sp];
+            long[] b = stack[sp + 1];
+            switch (opcode) {
+               case ADD:
+                  for (int r = 0; r < n; r++) a[r] += b[r];
+                  break;
+               case SUB:
+                  for (int r = 0; r < n; r++) a[r] -= b[r];
+                  break;
+               case MUL:
+                  for (int r = 0; r < n; r++) a[r] *= b[r];
+                  break;
+               case DIV:
+                  for (int r = 0; r < n; r++) {
+                     if (b[r] == 0) {
+                        throw rowFailure("Division by zero: cannot divide " + a[r] + " by zero.", from + r);
+                     }
+                     a[r] /= b[r];
+                  }
+                  break;
+               default:
+                  LongBinaryOperator binary = RpnOperators.BINARY[opcode];
+                  int r = 0;
+                  try {
+                     for (; r < n; r++) a[r] = binary.applyAsLong(a[r], b[r]);
+                  } catch (ArithmeticException e) {
+                     throw rowFailure(e.getMessage(), from + r);
+                  }
+            }
+         }
+         System.arraycopy(stack[0], 0, out, from, n);
+      }
+   }
+
+   private RuntimeException rowFailure (String detail, int row) {
+      return new RuntimeException("Error during operation: " + detail + " (row " + row + "). Expression: " + source);
+   }
+
+   /** Division by 2^k, 0 &lt; k &lt; 63, with the rounding of x / 2^k: the
+    * bias 2^k - 1 is added to negative dividends before the arithmetic shift.
+    */
+   static long divp2 (long x, int k) {
+      return (x + ((x >> 63) >>> (64 - k))) >> k;
+   }
+
+   byte[] code() {
+      return code;
+   }
+
+   long[] constants() {
+      return constants;
+   }
+
+   /** Token index of every instruction that can fail, in program order. */
+   int[] checkTokens() {
+      return checkTokens;
+   }
+
+   RpnResult error() {
+      return error;
+   }
+
+   /** Token statistics of the source up to the failing token, if any,
+    * computed on first use. The profile is immutable, so a race only
+    * computes it twice.
+    */
+   RpnMetrics.Profile profile() {
+      RpnMetrics.Profile p = profile;
+      if (p == null) {
+         int limit = error == null || error.tokenIndex() < 0 ? Integer.MAX_VALUE : error.tokenIndex() + 1;
+         p = RpnMetrics.Profile.of(source, limit);
+         profile = p;
+      }
+      return p;
+   }
+
+   private void checkBindings (int count, String what) {
+      if (count != variables.length) {
+         throw new IllegalArgumentException("Expected " + variables.length + " " + what + " for variables "
+            + Arrays.toString(variables) + ", got " + count + ": " + source);
+      }
+   }
+
+   private long[] scratch() {
+      long[] stack = SCRATCH.get();
+      if (stack.length < maxDepth) {
+         stack = new long[Math.max(maxDepth, stack.length * 2)];
+         SCRATCH.set(stack);
+      }
+      return stack;
+   }
+
+   /** Index of the variable named by pol[start, end), -1 if there is none. */
+   static int variable (String[] variables, String pol, int start, int end) {
+      for (int v = 0; v < variables.length; v++) {
+         String name = variables[v];
+         if (name.length() == end - start && pol.regionMatches(start, name, 0, end - start)) {
+            return v;
+         }
+      }
+      return -1;
+   }
+
+   /** Value of a decimal digit, -1 if c is none. Like Long.parseLong,
+    * this accepts the decimal digits of every script, such as the
+    * Arabic-Indic digits.
+    */
+   static int digit (char c) {
+      int digit = c - '0';
+      if (digit >= 0 && digit <= 9) {
+         return digit;
+      }
+      return c < 128 ? -1 : Character.digit(c, 10);
+   }
+
+   /** Whether the expression has the token as a whole, delimited by
+    * whitespace or the ends: <code>1 2 &gt;&gt;&gt;</code> has the token
+    * <code>&gt;&gt;&gt;</code> but not <code>&gt;&gt;</code>.
+    * @param pol expression in RPN, may be null
+    * @param token token to look for
+    * @return true if one of the tokens is <code>token</code>
+    */
+   static boolean hasToken (String pol, String token) {
+      if (pol == null || token.isEmpty()) {
+         return false;
+      }
+      for (int at = pol.indexOf(token); at >= 0; at = pol.indexOf(token, at + 1)) {
+         int end = at + token.length();
+         if ((at == 0 || isSpace(pol.charAt(at - 1))) && (end == pol.length() || isSpace(pol.charAt(end)))) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   /** Whitespace as matched by the regular expression \\s. */
+   static boolean isSpace (char c) {
+      return c == ' ' || (c >= '\t' && c <= '\r');
+   }
+
+}
+
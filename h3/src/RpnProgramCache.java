@@ -0,0 +1,205 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/** Bounded cache of compiled and optimized expressions, least recently
+ * used program is evicted first. Safe for use by several threads.
+ * <p>The programs are spread by the hash of the expression over up to 16
+ * segments, each an LRU map with its own lock and an equal share of the
+ * capacity, so threads looking up different expressions rarely wait for
+ * each other. Eviction is least recently used within a segment. Caches of
+ * fewer than 128 programs have one segment and are exactly LRU.
+ * <p>Incorrect expressions are kept in a separate, smaller LRU map of a
+ * quarter of the capacity, at most 1024, so repeating one costs no more
+ * than a correct expression, while a flood of distinct bad input only
+ * evicts other bad input and never the correct programs.
+ */
+public class RpnProgramCache {
+
+   private static final int MAX_SEGMENTS = 16;
+   /** Smallest share of the capacity worth a segment of its own. */
+   private static final int MIN_SEGMENT_CAPACITY = 64;
+   private static final int MAX_FAILED = 1024;
+
+   private final int capacity;
+   private final Function<String, RpnProgram> compiler;
+   private final Segment[] segments;
+   /** Incorrect expressions, apart from the correct ones. */
+   private final Segment failed;
+   private final LongAdder hits = new LongAdder();
+   private final LongAdder misses = new LongAdder();
+
+   /** Constructor.
+    * @param capacity largest number of programs kept
+    */
+   public RpnProgramCache (int capacity) {
+      this(capacity, RpnProgram::parse);
+   }
+
+   /** Constructor for a cache of expressions in another notation.
+    * @param capacity largest number of programs kept
+    * @param compiler compilation that reports errors in the program instead of throwing
+    */
+   RpnProgramCache (int capacity, Function<String, RpnProgram> compiler) {
+      if (capacity < 1) {
+         throw new IllegalArgumentException("Cache capacity must be positive, got " + capacity);
+      }
+      this.capacity = capacity;
+      this.compiler = compiler;
+      int n = Integer.highestOneBit(Math.max(1, Math.min(MAX_SEGMENTS, capacity / MIN_SEGMENT_CAPACITY)));
+      segments = new Segment[n];
+      for (int i = 0; i < n; i++) {
+         segments[i] = new Segment(capacity / n + (i < capacity % n ? 1 : 0));
+      }
+      failed = new Segment(Math.max(1, Math.min(MAX_FAILED, capacity / 4)));
+   }
+
+   /** Compiled program for the expression, compiling it on a miss.
+    * @param pol expression in RPN
+    * @return program for <code>pol</code>
+    * @throws RuntimeException if the expression is not correct
+    */
+   public RpnProgram get (String pol) {
+      RpnProgram program = lookup(pol);
+      if (!program.isValid()) {
+         throw program.error().toException();
+      }
+      return program;
+   }
+
+   /** Compiled program for the expression, compiling it on a miss. An
+    * incorrect expression gives a program that reports its error when
+    * run; it is cached apart from the correct ones, so a flood of
+    * distinct bad input cannot push the correct expressions out.
+    * @param pol expression in RPN
+    * @return program for <code>pol</code>, possibly not valid
+    */
+   public RpnProgram lookup (String pol) {
+      Segment segment = segment(pol);
+      RpnProgram program;
+      synchronized (segment) {
+         program = segment.get(pol);
+      }
+      if (program == null) {
+         synchronized (failed) {
+            program = failed.get(pol);
+         }
+      }
+      if (program != null) {
+         hits.increment();
+         return program;
+      }
+      misses.increment();
+      program = compiler.apply(pol).optimize();
+      Segment target = program.isValid() ? segment : failed;
+      synchronized (target) {
+         target.put(pol, program);
+      }
+      return program;
+   }
+
+   /** Number of lookups answered from the cache.
+    * @return hit count
+    */
+   public long hits() {
+      return hits.sum();
+   }
+
+   /** Number of lookups that had to compile.
+    * @return miss count
+    */
+   public long misses() {
+      return misses.sum();
+   }
+
+   /** Number of cached correct programs.
+    * @return cache size
+    */
+   public int size() {
+      int size = 0;
+      for (Segment segment : segments) {
+         synchronized (segment) {
+            size += segment.size();
+         }
+      }
+      return size;
+   }
+
+   /** Largest number of cached programs.
+    * @return capacity
+    */
+   public int capacity() {
+      return capacity;
+   }
+
+   /** Number of cached incorrect expressions.
+    * @return size of the cache of failed compilations
+    */
+   public int failedSize() {
+      synchronized (failed) {
+         return failed.size();
+      }
+   }
+
+   /** Removes the programs that match a condition, such as those that
+    * use an operator that was unregistered.
+    * @param filter condition for the programs to remove
+    */
+   void removeIf (Predicate<RpnProgram> filter) {
+      for (Segment segment : segments) {
+         synchronized (segment) {
+            segment.values().removeIf(filter);
+         }
+      }
+      synchronized (failed) {
+         failed.values().removeIf(filter);
+      }
+   }
+
+   /** Removes the incorrect expressions, which may have become correct
+    * because an operator was registered.
+    */
+   void removeInvalid() {
+      synchronized (failed) {
+         failed.clear();
+      }
+   }
+
+   /** Removes all programs and resets the counters. */
+   public void clear() {
+      for (Segment segment : segments) {
+         synchronized (segment) {
+            segment.clear();
+         }
+      }
+      removeInvalid();
+      hits.reset();
+      misses.reset();
+   }
+
+   private Segment segment (String pol) {
+      int h = pol == null ? 0 : pol.hashCode();
+      return segments[(h ^ h >>> 16) & (segments.length - 1)];
+   }
+
+   /** LRU map of one share of the cache, guarded by its own monitor. */
+   private static final class Segment extends LinkedHashMap<String, RpnProgram> {
+
+      private static final long serialVersionUID = 1L;
+
+      private final int capacity;
+
+      Segment (int capacity) {
+         super(16, 0.75f, true);
+         this.capacity = capacity;
+      }
+
+      @Override
+      protected boolean removeEldestEntry (Map.Entry<String, RpnProgram> eldest) {
+         return size() > capacity;
+      }
+   }
+
+}
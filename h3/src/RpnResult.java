@@ -0,0 +1,163 @@
+/** Outcome of evaluating an RPN expression without throwing: either the
+ * value, or the kind and position of the error. The error message is only
+ * built when it is asked for, so an incorrect expression costs about as
+ * much as a correct one. A holder can be reused for many evaluations.
+ */
+public class RpnResult {
+
+   /** Kinds of incorrect expressions. */
+   public enum ErrorKind {
+      /** Expression is null, empty or consists of whitespace only. */
+      EMPTY,
+      /** Expression leaves more than one element on the stack. */
+      REDUNDANT_ELEMENTS,
+      /** Token that is neither a number, an operation nor a variable. */
+      ILLEGAL_TOKEN,
+      /** Operation without enough elements on the stack. */
+      UNDERFLOW,
+      /** Division with a zero divisor. */
+      DIVISION_BY_ZERO,
+      /** Operator from <code>RpnOperators</code> that rejected its operands. */
+      ARITHMETIC,
+      /** Infix expression that is not well formed, such as unbalanced parentheses. */
+      SYNTAX
+   }
+
+   private String pol;
+   private long value;
+   private ErrorKind kind;
+   private int tokenIndex;
+   private int tokenStart;
+   private int tokenEnd;
+   private long operand;
+   private String detail;
+   private String message;
+
+   /** Whether the expression was correct.
+    * @return true if <code>value()</code> is available
+    */
+   public boolean ok() {
+      return kind == null;
+   }
+
+   /** Value of the expression.
+    * @return value
+    * @throws RuntimeException with the error message, if the expression was not correct
+    */
+   public long value() {
+      if (kind != null) {
+         throw toException();
+      }
+      return value;
+   }
+
+   /** Kind of the error.
+    * @return error kind, null if the expression was correct
+    */
+   public ErrorKind errorKind() {
+      return kind;
+   }
+
+   /** Position of the error, counted in tokens from 0. For redundant
+    * elements this is the number of tokens, for an empty expression -1.
+    * @return index of the offending token
+    */
+   public int tokenIndex() {
+      return tokenIndex;
+   }
+
+   /** Offending token.
+    * @return token text, null if the error is not caused by one token
+    */
+   public String token() {
+      return tokenStart < 0 ? null : pol.substring(tokenStart, tokenEnd);
+   }
+
+   /** Expression that was evaluated.
+    * @return expression in its original form
+    */
+   public String expression() {
+      return pol;
+   }
+
+   /** Error message, the same as <code>LongStack.interpret</code> throws.
+    * @return message, null if the expression was correct
+    */
+   public String message() {
+      if (kind == null || message != null) {
+         return message;
+      }
+      switch (kind) {
+         case EMPTY:
+            message = "Invalid expression: expression is null or empty. Expression: \"" + pol + "\"";
+            break;
+         case REDUNDANT_ELEMENTS:
+            message = "Invalid expression: leaves redundant elements on the stack. Expression: \"" + pol + "\"";
+            break;
+         case ILLEGAL_TOKEN:
+            message = "Invalid token: " + token() + " in expression: " + pol;
+            break;
+         case UNDERFLOW:
+            message = "Error during operation: Stack underflow: not enough elements for operation "
+               + token() + ". Expression: " + pol;
+            break;
+         case DIVISION_BY_ZERO:
+            message = "Error during operation: Division by zero: cannot divide " + operand
+               + " by zero.. Expression: " + pol;
+            break;
+         case SYNTAX:
+            message = "Syntax error: " + detail + " in expression: " + pol;
+            break;
+         default:
+            message = "Error during operation: " + detail + ". Expression: " + pol;
+      }
+      return message;
+   }
+
+   /** Exception that <code>LongStack.interpret</code> would throw.
+    * @return exception with the error message, null if the expression was correct
+    */
+   public RuntimeException toException() {
+      return kind == null ? null : new RuntimeException(message());
+   }
+
+   @Override
+   public String toString() {
+      return kind == null ? String.valueOf(value) : kind + " at token " + tokenIndex + ": " + message();
+   }
+
+   void succeed (String pol, long value) {
+      this.pol = pol;
+      this.value = value;
+      this.kind = null;
+      this.message = null;
+   }
+
+   void fail (String pol, ErrorKind kind, int tokenIndex, int tokenStart, int tokenEnd, long operand) {
+      this.pol = pol;
+      this.value = 0;
+      this.kind = kind;
+      this.tokenIndex = tokenIndex;
+      this.tokenStart = tokenStart;
+      this.tokenEnd = tokenEnd;
+      this.operand = operand;
+      this.detail = null;
+      this.message = null;
+   }
+
+   /** Message of the operator's exception for ARITHMETIC errors, the
+    * description of the error for SYNTAX errors.
+    */
+   void detail (String detail) {
+      this.detail = detail;
+   }
+
+   void copyFrom (RpnResult other) {
+      fail(other.pol, other.kind, other.tokenIndex, other.tokenStart, other.tokenEnd, other.operand);
+      this.detail = other.detail;
+      this.value = other.value;
+      this.message = other.message;
+   }
+
+}
+
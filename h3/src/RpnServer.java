@@ -0,0 +1,361 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/** Server that evaluates RPN expressions for other processes on the same
+ * host, so they share one warmed-up JVM and its program cache. Listens on
+ * a localhost TCP port or a Unix domain socket.
+ * <p>Protocol: each request is one expression terminated by a newline;
+ * each response is one line, either the value or <code>ERR </code>
+ * followed by the error message. A client may send any number of
+ * requests without waiting (pipelining); the responses come back in the
+ * order of the requests.
+ * <p>One selector thread does all network I/O. The complete lines of each
+ * read form a batch that is evaluated by a worker pool; the workers reuse
+ * their operand stacks and result holders, and completed batches are
+ * written back in sequence. A connection stops being read while too many
+ * of its batches are waiting for evaluation or for the socket, or while
+ * a response is only partly written, so a client that sends without
+ * reading cannot exhaust memory.
+ */
+public final class RpnServer implements Closeable {
+
+   /** Longest accepted request line. */
+   static final int MAX_LINE = 1 << 20;
+   /** Batches of one connection that may wait for evaluation or writing. */
+   private static final int MAX_PENDING = 64;
+   private static final int BUFFER_SIZE = 64 * 1024;
+   private static final ThreadLocal<RpnResult> RESULT = ThreadLocal.withInitial(RpnResult::new);
+
+   private final ServerSocketChannel server;
+   private final Selector selector;
+   private final ExecutorService workers;
+   private final Path socketFile;
+   private final ConcurrentLinkedQueue<Connection> completed = new ConcurrentLinkedQueue<>();
+   private final Thread loop;
+   private volatile boolean closed;
+
+   /** Starts a server.
+    * @param address InetSocketAddress (port 0 picks a free port) or UnixDomainSocketAddress
+    * @param threads number of worker threads
+    * @throws IOException if the address cannot be bound
+    */
+   public RpnServer (SocketAddress address, int threads) throws IOException {
+      if (threads < 1) {
+         throw new IllegalArgumentException("Number of worker threads must be positive, got " + threads);
+      }
+      boolean unix = address instanceof UnixDomainSocketAddress;
+      server = unix ? ServerSocketChannel.open(StandardProtocolFamily.UNIX) : ServerSocketChannel.open();
+      socketFile = unix ? ((UnixDomainSocketAddress) address).getPath() : null;
+      server.bind(address);
+      server.configureBlocking(false);
+      selector = Selector.open();
+      server.register(selector, SelectionKey.OP_ACCEPT);
+      workers = Executors.newFixedThreadPool(threads, r -> {
+         Thread t = new Thread(r, "rpn-worker");
+         t.setDaemon(true);
+         return t;
+      });
+      loop = new Thread(this::run, "rpn-server");
+      loop.setDaemon(true);
+      loop.start();
+   }
+
+   /** Starts a server on localhost and waits until it is killed.
+    * Usage: <code>RpnServer port [threads]</code> or
+    * <code>RpnServer unix:path [threads]</code>.
+    * @param args address and optionally number of worker threads
+    * @throws Exception if the server cannot be started
+    */
+   public static void main (String[] args) throws Exception {
+      if (args.length < 1) {
+         System.err.println("Usage: RpnServer port|unix:path [threads]");
+         System.exit(2);
+      }
+      int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+      RpnServer server = new RpnServer(address(args[0]), threads);
+      System.out.println("Listening on " + server.address() + " with " + threads + " workers");
+      server.loop.join();
+   }
+
+   /** Address from a command line argument: a port on localhost, or
+    * <code>unix:</code> and the path of a socket file.
+    */
+   static SocketAddress address (String arg) {
+      if (arg.startsWith("unix:")) {
+         return UnixDomainSocketAddress.of(arg.substring(5));
+      }
+      return new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(arg));
+   }
+
+   /** Address the server listens on.
+    * @return bound address, with the actual port if port 0 was requested
+    * @throws IOException if the server is closed
+    */
+   public SocketAddress address() throws IOException {
+      return server.getLocalAddress();
+   }
+
+   /** Stops accepting and closes all connections. */
+   @Override
+   public void close() throws IOException {
+      closed = true;
+      selector.wakeup();
+      try {
+         loop.join(1000);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+      workers.shutdownNow();
+      for (SelectionKey key : selector.keys()) {
+         key.channel().close();
+      }
+      selector.close();
+      server.close();
+      if (socketFile != null) {
+         Files.deleteIfExists(socketFile);
+      }
+   }
+
+   private void run() {
+      try {
+         while (!closed) {
+            selector.select();
+            Connection ready;
+            while ((ready = completed.poll()) != null) {
+               try {
+                  ready.flush();
+               } catch (IOException e) {
+                  ready.close();
+               }
+            }
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+               SelectionKey key = keys.next();
+               keys.remove();
+               if (!key.isValid()) {
+                  continue;
+               }
+               if (key.isAcceptable()) {
+                  accept();
+                  continue;
+               }
+               Connection connection = (Connection) key.attachment();
+               try {
+                  if (key.isReadable()) {
+                     connection.read();
+                  }
+                  if (key.isValid() && key.isWritable()) {
+                     connection.flush();
+                  }
+               } catch (IOException e) {
+                  connection.close();
+               }
+            }
+         }
+      } catch (IOException | ClosedSelectorException e) {
+         if (!closed) {
+            throw new IllegalStateException("RPN server stopped", e);
+         }
+      }
+   }
+
+   /** Accepts a pending client. A failure affects that client only. */
+   private void accept() {
+      SocketChannel channel = null;
+      try {
+         channel = server.accept();
+         if (channel == null) {
+            return;
+         }
+         channel.configureBlocking(false);
+         Connection connection = new Connection(channel);
+         connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+      } catch (IOException e) {
+         System.err.println("RPN server cannot accept a client: " + e);
+         if (channel != null) {
+            try {
+               channel.close();
+            } catch (IOException ignored) {
+               // the client is gone either way
+            }
+         }
+      }
+   }
+
+   /** Evaluates a batch of request lines. A line whose evaluation throws,
+    * for example through a registered operator that fails with another
+    * exception than ArithmeticException, gets an error response like an
+    * incorrect expression, so the batch always completes and later
+    * responses are not held up.
+    * @return the response lines
+    */
+   static byte[] evaluate (List<String> lines) {
+      RpnResult result = RESULT.get();
+      StringBuilder out = new StringBuilder(lines.size() * 8);
+      for (String line : lines) {
+         String error;
+         try {
+            error = LongStack.tryInterpret(line, result) ? null : result.message();
+         } catch (RuntimeException e) {
+            error = e.getMessage() == null ? e.toString() : e.getMessage();
+         }
+         if (error == null) {
+            out.append(result.value());
+         } else {
+            out.append("ERR ").append(error.replace('\n', ' '));
+         }
+         out.append('\n');
+      }
+      return out.toString().getBytes(StandardCharsets.UTF_8);
+   }
+
+   /** State of one client. Everything except <code>done</code> is used
+    * by the selector thread only.
+    */
+   private final class Connection {
+      private final SocketChannel channel;
+      private final ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+      private final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+      private SelectionKey key;
+      private byte[] line = new byte[256];
+      private int lineLength;
+      private long submitted;
+      /** Batches moved from <code>done</code> to <code>out</code>. */
+      private long queued;
+      /** Batches whose response has been written to the socket completely. */
+      private long flushed;
+      private boolean eof;
+
+      /** Evaluated batches that are not yet queued for writing, by sequence number. */
+      private final Map<Long, byte[]> done = new HashMap<>();
+
+      Connection (SocketChannel channel) {
+         this.channel = channel;
+      }
+
+      void read() throws IOException {
+         int n = channel.read(in);
+         if (n < 0) {
+            eof = true;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            if (lineLength > 0) {
+               submit(List.of(new String(line, 0, lineLength, StandardCharsets.UTF_8)));
+               lineLength = 0;
+            }
+            flush();
+            return;
+         }
+         in.flip();
+         List<String> batch = new ArrayList<>();
+         while (in.hasRemaining()) {
+            byte b = in.get();
+            if (b == '\n') {
+               int end = lineLength > 0 && line[lineLength - 1] == '\r' ? lineLength - 1 : lineLength;
+               batch.add(new String(line, 0, end, StandardCharsets.UTF_8));
+               lineLength = 0;
+            } else if (lineLength == MAX_LINE) {
+               byte[] error = ("ERR Request longer than " + MAX_LINE + " bytes\n").getBytes(StandardCharsets.UTF_8);
+               channel.write(ByteBuffer.wrap(error));
+               close();
+               return;
+            } else {
+               if (lineLength == line.length) {
+                  line = Arrays.copyOf(line, Math.min(MAX_LINE, line.length * 2));
+               }
+               line[lineLength++] = b;
+            }
+         }
+         in.clear();
+         if (!batch.isEmpty()) {
+            submit(batch);
+         }
+      }
+
+      private void submit (List<String> batch) {
+         long sequence = submitted++;
+         try {
+            workers.execute(() -> {
+               byte[] response = evaluate(batch);
+               synchronized (done) {
+                  done.put(sequence, response);
+               }
+               completed.add(this);
+               selector.wakeup();
+            });
+         } catch (RejectedExecutionException e) {
+            close();             // the server is shutting down
+            return;
+         }
+         if (submitted - flushed >= MAX_PENDING) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+         }
+      }
+
+      /** Queues the batches that are next in sequence and writes as much as the socket takes. */
+      void flush() throws IOException {
+         if (!key.isValid()) {
+            return;
+         }
+         synchronized (done) {
+            byte[] next;
+            while ((next = done.remove(queued)) != null) {
+               out.add(ByteBuffer.wrap(next));
+               queued++;
+            }
+         }
+         while (!out.isEmpty()) {
+            ByteBuffer buffer = out.peek();
+            channel.write(buffer);
+            if (buffer.hasRemaining()) {
+               break;
+            }
+            out.poll();
+            flushed++;
+         }
+         int ops = out.isEmpty() ? 0 : SelectionKey.OP_WRITE;
+         if (!eof && out.isEmpty() && submitted - flushed < MAX_PENDING) {
+            ops |= SelectionKey.OP_READ;
+         }
+         if (eof && out.isEmpty() && flushed == submitted) {
+            close();
+            return;
+         }
+         key.interestOps(ops);
+      }
+
+      void close() {
+         key.cancel();
+         try {
+            channel.close();
+         } catch (IOException e) {
+            // the client is gone either way
+         }
+      }
+   }
+
+}
@@ -0,0 +1,257 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/** Interpretation of RPN expressions that are too large to be held in
+ * a String. Input is consumed in fixed-size buffers and parsed byte by
+ * byte (or char by char), so memory use depends only on the stack depth.
+ * Errors are reported with the offset of the offending token instead of
+ * the whole expression.
+ */
+public final class RpnStreamInterpreter {
+
+   private static final int BUFFER_SIZE = 64 * 1024;
+   private static final long MAP_REGION = 1L << 30;
+
+   private RpnStreamInterpreter() {
+   }
+
+   /** Interpretation of an expression read from a character stream.
+    * @param in expression in RPN
+    * @return value of the expression
+    * @throws RuntimeException if the expression is not correct
+    * @throws IOException if reading fails
+    */
+   public static long interpret (Reader in) throws IOException {
+      Scanner scanner = new Scanner("character");
+      char[] buffer = new char[BUFFER_SIZE];
+      int n;
+      while ((n = in.read(buffer)) >= 0) {
+         for (int i = 0; i < n; i++) {
+            scanner.accept(buffer[i]);
+         }
+      }
+      return scanner.finish();
+   }
+
+   /** Interpretation of an expression read from a byte stream of ASCII text.
+    * @param in expression in RPN
+    * @return value of the expression
+    * @throws RuntimeException if the expression is not correct
+    * @throws IOException if reading fails
+    */
+   public static long interpret (InputStream in) throws IOException {
+      return interpret(Channels.newChannel(in));
+   }
+
+   /** Interpretation of an expression read from a channel of ASCII text.
+    * @param in expression in RPN
+    * @return value of the expression
+    * @throws RuntimeException if the expression is not correct
+    * @throws IOException if reading fails
+    */
+   public static long interpret (ReadableByteChannel in) throws IOException {
+      Scanner scanner = new Scanner("byte");
+      ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+      byte[] bytes = buffer.array();
+      while (in.read(buffer) >= 0) {
+         int n = buffer.position();
+         for (int i = 0; i < n; i++) {
+            scanner.accept((char) (bytes[i] & 0xff));
+         }
+         buffer.clear();
+      }
+      return scanner.finish();
+   }
+
+   /** Interpretation of an expression stored in a file, memory-mapped.
+    * @param file file containing the expression in RPN as ASCII text
+    * @return value of the expression
+    * @throws RuntimeException if the expression is not correct
+    * @throws IOException if reading fails
+    */
+   public static long interpret (Path file) throws IOException {
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+         return interpret(channel, 0, channel.size());
+      }
+   }
+
+   /** Interpretation of an expression stored in a region of a file, memory-mapped.
+    * Regions larger than 1 GiB are mapped piece by piece.
+    * @param channel file containing the expression in RPN as ASCII text
+    * @param position offset of the first byte of the expression
+    * @param size number of bytes in the expression
+    * @return value of the expression
+    * @throws RuntimeException if the expression is not correct
+    * @throws IOException if mapping fails
+    */
+   public static long interpret (FileChannel channel, long position, long size) throws IOException {
+      Scanner scanner = new Scanner("byte");
+      for (long done = 0; done < size; done += MAP_REGION) {
+         long length = Math.min(MAP_REGION, size - done);
+         MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position + done, length);
+         int n = (int) length;
+         for (int i = 0; i < n; i++) {
+            scanner.accept((char) (region.get(i) & 0xff));
+         }
+      }
+      return scanner.finish();
+   }
+
+   /** Tokenizer and evaluator fed one character at a time. A token may
+    * span any number of input buffers; only its first characters are
+    * kept for error messages.
+    */
+   private static final class Scanner {
+
+      private static final int SNIPPET = 32;
+
+      private final String unit;
+      private long[] stack = new long[16];
+      private int sp = -1;
+      private long offset;
+      private int tokens;
+
+      private long tokenStart;
+      private int tokenLength;
+      private final char[] snippet = new char[SNIPPET];
+      private final CharBuffer token = CharBuffer.wrap(snippet);
+      private boolean negative;
+      private boolean valid;
+      private long limit;
+      private long result;
+
+      Scanner (String unit) {
+         this.unit = unit;
+      }
+
+      void accept (char c) {
+         if (RpnProgram.isSpace(c)) {
+            if (tokenLength > 0) {
+               endToken();
+            }
+         } else if (tokenLength == 0) {
+            tokenStart = offset;
+            tokenLength = 1;
+            snippet[0] = c;
+            negative = c == '-';
+            valid = true;
+            limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+            result = 0;
+            if (c != '-' && c != '+') {
+               digit(c);
+            }
+         } else {
+            if (tokenLength < SNIPPET) {
+               snippet[tokenLength] = c;
+            }
+            tokenLength++;
+            digit(c);
+         }
+         offset++;
+      }
+
+      long finish() {
+         if (tokenLength > 0) {
+            endToken();
+         }
+         if (tokens == 0) {
+            throw new RuntimeException("Invalid expression: input is empty or contains whitespace only");
+         }
+         if (sp < 0) {
+            throw new RuntimeException("Stack underflow: expression leaves no value on the stack"
+               + " at the end of input (" + unit + " offset " + offset + ")");
+         }
+         if (sp > 0) {
+            throw new RuntimeException("Invalid expression: leaves " + sp + " redundant elements on the stack"
+               + " at the end of input (" + unit + " offset " + offset + ")");
+         }
+         return stack[0];
+      }
+
+      private void digit (char c) {
+         int digit = RpnProgram.digit(c);
+         if (!valid || digit < 0 || result < limit / 10) {
+            valid = false;
+         } else {
+            result *= 10;
+            valid = result >= limit + digit;
+            result -= digit;
+         }
+      }
+
+      private void endToken() {
+         tokens++;
+         byte opcode = tokenLength <= SNIPPET ? RpnOperators.resolve(token, 0, tokenLength) : RpnProgram.PUSH;
+         if (opcode != RpnProgram.PUSH) {
+            apply(opcode);
+         } else if (valid && (tokenLength > 1 || (snippet[0] != '-' && snippet[0] != '+'))) {
+            if (++sp == stack.length) {
+               stack = Arrays.copyOf(stack, stack.length * 2);
+            }
+            stack[sp] = negative ? result : -result;
+         } else {
+            throw new RuntimeException("Invalid token: " + new String(snippet, 0, Math.min(tokenLength, SNIPPET))
+               + (tokenLength > SNIPPET ? "..." : "") + " at " + unit + " offset " + tokenStart);
+         }
+         tokenLength = 0;
+      }
+
+      private void apply (byte opcode) {
+         if (sp + 1 < RpnOperators.pops(opcode)) {
+            throw new RuntimeException("Error during operation: Stack underflow: not enough elements for operation "
+               + new String(snippet, 0, tokenLength) + " at " + unit + " offset " + tokenStart);
+         }
+         if (sp + 1 == stack.length) {
+            stack = Arrays.copyOf(stack, stack.length * 2);
+         }
+         switch (opcode) {
+            case RpnOperators.DUP:
+               stack[sp + 1] = stack[sp];
+               sp++;
+               return;
+            case RpnOperators.SWAP:
+               long top = stack[sp];
+               stack[sp] = stack[sp - 1];
+               stack[sp - 1] = top;
+               return;
+            case RpnOperators.DROP:
+               sp--;
+               return;
+            case RpnOperators.OVER:
+               stack[sp + 1] = stack[sp - 1];
+               sp++;
+               return;
+            case RpnProgram.DIV:
+               if (stack[sp] == 0) {
+                  throw new RuntimeException("Error during operation: Division by zero: cannot divide " + stack[sp - 1]
+                     + " by zero at " + unit + " offset " + tokenStart);
+               }
+               break;
+            default:
+         }
+         try {
+            if (RpnOperators.UNARY[opcode] != null) {
+               stack[sp] = RpnOperators.UNARY[opcode].applyAsLong(stack[sp]);
+            } else {
+               sp--;
+               stack[sp] = RpnOperators.BINARY[opcode].applyAsLong(stack[sp], stack[sp + 1]);
+            }
+         } catch (ArithmeticException e) {
+            throw new RuntimeException("Error during operation: " + e.getMessage() + " at " + unit
+               + " offset " + tokenStart);
+         }
+      }
+   }
+
+}
+
@@ -1,6 +1,29 @@
-
 import static org.junit.Assert.*;
 import org.junit.Test;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import javax.management.ObjectName;
 
 /** Testklass.
  * @author jaanus
@@ -212,7 +235,7 @@ public class LongStackTest {
    }
 
    @Test (timeout=1000)
-   public void testInterpretTokenizer() {
+   public void testInterpretTokenizer() throws IOException {
       String s = "1  2    +";
       assertEquals ("expression: " + Aout.toString (s), 3, 
          LongStack.interpret (s));
@@ -222,6 +245,14 @@ public class LongStackTest {
       s = "\t2 \t5 +   \t";
       assertEquals ("expression: " + Aout.toString (s), 7, 
          LongStack.interpret (s));
+      s = "5 \u0663 +";
+      assertEquals ("digits of other scripts, as Long.parseLong reads them;", 8,
+         LongStack.interpret (s));
+      s = "-\u0661\u0662 \uff13 *";
+      assertEquals ("expression: " + Aout.toString (s), -36,
+         LongStack.interpret (s));
+      assertEquals ("stream;", 8, RpnStreamInterpreter.interpret (new StringReader ("5 \u0663 +")));
+      assertFalse ("other characters are not digits;", LongStack.tryInterpret ("5 \u00b2 +").ok());
    }
 
    @Test (expected=RuntimeException.class)
@@ -274,5 +305,889 @@ public class LongStackTest {
       LongStack.interpret ("+");
    }
 
-}
+   @Test (timeout=1000)
+   public void testInterpretNumberLimits() {
+      String s = "-9223372036854775808";
+      assertEquals ("expression: " + s, Long.MIN_VALUE, LongStack.interpret (s));
+      s = "9223372036854775807 +3 -";
+      assertEquals ("expression: " + s, Long.MAX_VALUE - 3, LongStack.interpret (s));
+   }
+
+   @Test (expected=RuntimeException.class)
+   public void testInterpretNumberOverflow() {
+      LongStack.interpret ("9223372036854775808");
+   }
+
+   @Test (expected=RuntimeException.class)
+   public void testInterpretSignOnly() {
+      LongStack.interpret ("3 4 - +-");
+   }
+
+   @Test (timeout=1000)
+   public void testProgramCache() {
+      RpnProgramCache cache = new RpnProgramCache (2);
+      assertEquals ("first lookup must compile;", 7, cache.get ("3 4 +").run());
+      assertEquals ("second lookup must hit;", 7, cache.get ("3 4 +").run());
+      assertEquals ("hits;", 1, cache.hits());
+      assertEquals ("misses;", 1, cache.misses());
+      cache.get ("1");
+      cache.get ("3 4 +");
+      cache.get ("2");
+      assertEquals ("cache must be bounded;", 2, cache.size());
+      cache.get ("3 4 +");
+      assertEquals ("recently used program must stay;", 3, cache.hits());
+      cache.get ("1");
+      assertEquals ("least recently used program must be evicted;", 4, cache.misses());
+      assertFalse ("incorrect expression;", cache.lookup ("3 +").isValid());
+      assertFalse ("incorrect expression;", cache.lookup ("3 +").isValid());
+      assertEquals ("repeated incorrect expression must hit;", 5, cache.misses());
+      assertEquals ("hits;", 4, cache.hits());
+      assertEquals ("size without incorrect expressions;", 2, cache.size());
+      assertEquals ("incorrect expressions are cached apart;", 1, cache.failedSize());
+   }
+
+   @Test (timeout=5000)
+   public void testFailedProgramCache() {
+      RpnProgramCache cache = new RpnProgramCache (1000);
+      cache.get ("1 2 +");
+      for (int i = 0; i < 10000; i++) {
+         assertFalse ("incorrect expression;", cache.lookup (i + " 1 + +").isValid());
+      }
+      assertEquals ("failed compilations are bounded;", 250, cache.failedSize());
+      assertEquals ("bad input must not evict correct programs;", 1, cache.size());
+      long misses = cache.misses();
+      RpnResult r = new RpnResult();
+      for (int i = 0; i < 1000; i++) {
+         assertFalse ("repeated;", cache.lookup ("1 0 / 2").tryRun (null, r));
+         assertEquals ("error kind;", RpnResult.ErrorKind.DIVISION_BY_ZERO, r.errorKind());
+      }
+      assertEquals ("repeated incorrect expression is compiled once;", misses + 1, cache.misses());
+      assertFalse ("not yet defined;", LongStack.tryInterpret ("7 twice").ok());
+      RpnOperators.register ("twice", a -> 2 * a);
+      try {
+         assertEquals ("registration drops cached failures;", 14, LongStack.interpret ("7 twice"));
+      } finally {
+         RpnOperators.unregister ("twice");
+      }
+   }
+
+   @Test (timeout=5000)
+   public void testProgramCacheSegments() {
+      RpnProgramCache cache = new RpnProgramCache (1000);
+      for (int i = 0; i < 5000; i++) {
+         assertEquals ("value;", i + 1, cache.get (i + " 1 +").run());
+      }
+      assertEquals ("every segment must be bounded;", 1000, cache.size());
+      assertEquals ("recent program must stay;", 5000, cache.get ("4999 1 +").run());
+      assertEquals ("hit;", 1, cache.hits());
+      cache.clear();
+      assertEquals ("cleared;", 0, cache.size());
+   }
+
+   @Test (timeout=1000)
+   public void testCompile() {
+      RpnProgram p = RpnProgram.compile ("1 -10 4 8 3 - + * +");
+      assertEquals ("program length;", 9, p.length());
+      assertEquals ("stack depth;", 5, p.maxDepth());
+      assertEquals ("value;", -89, p.run (new long[5]));
+      assertEquals ("value on a reused stack;", -89, p.run (new long[5]));
+   }
+
+   @Test (expected=RuntimeException.class)
+   public void testRunDivisionByZero() {
+      RpnProgram.compile ("5 3 3 - /").run();
+   }
+
+   @Test (timeout=1000)
+   public void testVariables() {
+      RpnProgram p = RpnProgram.compile ("x y * 3 +", "x", "y");
+      assertEquals ("x=4, y=5;", 23, p.runWith (4, 5));
+      assertEquals ("x=-2, y=7;", -11, p.runWith (-2, 7));
+   }
+
+   @Test (expected=RuntimeException.class)
+   public void testUnknownVariable() {
+      RpnProgram.compile ("x z *", "x", "y");
+   }
+
+   @Test (timeout=1000)
+   public void testEvaluateColumns() {
+      int rows = 2500;
+      long[] x = new long[rows];
+      long[] y = new long[rows];
+      for (int r = 0; r < rows; r++) {
+         x[r] = r - 1000;
+         y[r] = 3 * r + 1;
+      }
+      long[] out = new long[rows];
+      RpnProgram p = RpnProgram.compile ("x y * 3 + y /", "x", "y");
+      p.evaluateColumns (new long[][] {x, y}, out);
+      for (int r = 0; r < rows; r++) {
+         assertEquals ("row " + r, p.runWith (x[r], y[r]), out[r]);
+      }
+   }
+
+   @Test (timeout=5000)
+   public void testInterpretAll() {
+      List<String> pols = new ArrayList<>();
+      for (int i = 0; i < 2000; i++) {
+         pols.add (i % 7 == 0 ? i + " x +" : i + " 2 *");
+      }
+      long lookups = LongStack.programCache().hits() + LongStack.programCache().misses();
+      LongStack.BatchResult result = LongStack.interpretAll (pols);
+      assertEquals ("batch must bypass the program cache;", lookups,
+         LongStack.programCache().hits() + LongStack.programCache().misses());
+      assertEquals ("batch size;", 2000, result.size());
+      assertEquals ("same error as interpret;", LongStack.tryInterpret (pols.get (7)).message(),
+         result.error (7).getMessage());
+      assertEquals ("every seventh expression is not correct;", 286, result.errorCount());
+      for (int i = 0; i < 2000; i++) {
+         if (i % 7 == 0) {
+            assertTrue ("expression " + pols.get (i) + " must fail;", result.failed (i));
+         } else {
+            assertEquals ("expression " + pols.get (i), 2L * i, result.value (i));
+         }
+      }
+   }
+
+   @Test (timeout=5000)
+   public void testStreamInterpret() throws Exception {
+      String s = "1 -10 4 8 3 - + * +";
+      assertEquals ("reader: " + s, -89,
+         RpnStreamInterpreter.interpret (new StringReader (s)));
+      assertEquals ("input stream: " + s, -89, RpnStreamInterpreter.interpret (
+         new ByteArrayInputStream (s.getBytes ("US-ASCII"))));
+      StringBuilder sb = new StringBuilder ("0");
+      for (int i = 1; i <= 100000; i++) {
+         sb.append (" \t").append (i).append (" +");
+      }
+      Path file = Files.createTempFile ("rpn", ".txt");
+      try {
+         Files.write (file, sb.toString().getBytes ("US-ASCII"));
+         assertEquals ("mapped file with 200001 tokens;", 5000050000L,
+            RpnStreamInterpreter.interpret (file));
+      } finally {
+         Files.delete (file);
+      }
+   }
+
+   @Test (timeout=1000)
+   public void testStreamInterpretOffset() throws Exception {
+      try {
+         RpnStreamInterpreter.interpret (new StringReader ("2 3 + xx -"));
+         fail ("illegal symbol must be detected;");
+      } catch (RuntimeException e) {
+         assertTrue ("message must report the offset: " + e.getMessage(),
+            e.getMessage().contains ("offset 6"));
+      }
+      try {
+         RpnStreamInterpreter.interpret (new StringReader ("5 drop"));
+         fail ("expression without a value must be detected;");
+      } catch (RuntimeException e) {
+         assertTrue ("message must report underflow: " + e.getMessage(),
+            e.getMessage().startsWith ("Stack underflow: expression leaves no value"));
+      }
+   }
+
+   @Test (timeout=10000)
+   public void testConcurrentStack() throws Exception {
+      final ConcurrentLongStack m = new ConcurrentLongStack();
+      final int threads = 4;
+      final int n = 20000;
+      final long[] popped = new long[threads];
+      Thread[] workers = new Thread[threads];
+      for (int t = 0; t < threads; t++) {
+         final int id = t;
+         workers[t] = new Thread (() -> {
+            for (int i = 1; i <= n; i++) {
+               m.push (i);
+               popped[id] += m.pop();
+            }
+         });
+         workers[t].start();
+      }
+      for (Thread w : workers) w.join();
+      assertTrue ("every pushed element must be popped once;", m.stEmpty());
+      long sum = 0;
+      for (long p : popped) sum += p;
+      assertEquals ("sum of popped elements;", (long) threads * n * (n + 1) / 2, sum);
+   }
+
+   @Test (timeout=10000)
+   public void testConcurrentOp() throws Exception {
+      final ConcurrentLongStack m = new ConcurrentLongStack();
+      final int threads = 4;
+      final int n = 20000;
+      for (int i = 0; i < threads * n + 1; i++) {
+         m.push (1);
+      }
+      Thread[] workers = new Thread[threads];
+      for (int t = 0; t < threads; t++) {
+         workers[t] = new Thread (() -> {
+            for (int i = 0; i < n; i++) m.op ("+");
+         });
+         workers[t].start();
+      }
+      for (Thread w : workers) w.join();
+      assertEquals ("op must be atomic;", threads * n + 1, m.pop());
+      assertTrue ("all elements must be summed;", m.stEmpty());
+   }
+
+   @Test (timeout=1000)
+   public void testOpChar() {
+      LongStack m = new LongStack();
+      m.push (51);
+      m.push (3);
+      m.op ('/');
+      m.push (4);
+      m.op ('-');
+      assertEquals ("51 / 3 - 4 must be 13;", 13, m.pop());
+      assertTrue ("op must not grow the stack;", m.stEmpty());
+   }
+
+   @Test (timeout=1000)
+   public void testOpIllegal() {
+      LongStack m = new LongStack();
+      m.push (5);
+      m.push (3);
+      try {
+         m.op ("#");
+         fail ("# is not a legal operation;");
+      } catch (RuntimeException e) {
+         assertTrue ("message must show the illegal input: " + e.getMessage(),
+            e.getMessage().contains ("#"));
+      }
+      assertEquals ("illegal operation must not change the stack;", "5 3", m.toString());
+   }
+
+   @Test (timeout=1000)
+   public void testOptimize() {
+      RpnProgram p = RpnProgram.compile ("2 3 * x +", "x").optimize();
+      assertEquals ("2 3 * must be folded;", 2, p.removedInstructions());
+      assertEquals ("value;", 16, p.runWith (10));
+      p = RpnProgram.compile ("0 x + 0 - 1 * 1 /", "x").optimize();
+      assertEquals ("identities must be removed;", 8, p.removedInstructions());
+      assertEquals ("value;", -7, p.runWith (-7));
+      p = RpnProgram.compile ("1 2 + 4 * 5 -").optimize();
+      assertEquals ("constant expression must fold to one push;", 1, p.length());
+      assertEquals ("value;", 7, p.run());
+   }
+
+   @Test (timeout=1000)
+   public void testOptimizeShifts() {
+      String[] pols = {"x 8 *", "4 x *", "x 8 /", "x 1024 / y 2 * -", "x 4611686018427387904 /"};
+      long[] values = {0, 1, -1, 7, -7, 8, -8, 9, -9, 1023, -1025,
+         Long.MAX_VALUE, Long.MIN_VALUE, Long.MIN_VALUE + 1};
+      for (String pol : pols) {
+         RpnProgram plain = RpnProgram.compile (pol, "x", "y");
+         RpnProgram optimized = plain.optimize();
+         assertTrue (pol + " must be rewritten to a shift;", optimized.removedInstructions() > 0);
+         for (long x : values) {
+            assertEquals (pol + " with x=" + x, plain.runWith (x, x), optimized.runWith (x, x));
+         }
+      }
+   }
+
+   @Test (expected=RuntimeException.class)
+   public void testOptimizeKeepsDivisionByZero() {
+      RpnProgram p = RpnProgram.compile ("2 3 3 - / 1 +").optimize();
+      p.run();
+   }
+
+   @Test (timeout=1000)
+   public void testCloneShared() throws CloneNotSupportedException {
+      LongStack m1 = new LongStack();
+      for (int i = 0; i < 100000; i++) {
+         m1.push (i);
+      }
+      LongStack m2 = (LongStack) m1.clone();
+      for (int i = 0; i < 1000; i++) {
+         assertEquals ("deep clone must be equal;", m1, m2);
+         LongStack m3 = (LongStack) m2.clone();
+         m3.op ('+');
+         m3.push (i);
+      }
+      m2.pop();
+      m2.push (-1);
+      assertEquals ("clone must be independent;", 99999, m1.tos());
+      assertFalse ("clone must be independent;", m1.equals (m2));
+      m2.pop();
+      m2.push (99999);
+      assertEquals ("stacks with different top nodes but same elements;", m1, m2);
+   }
+
+   @Test (timeout=1000)
+   public void testHashCode() {
+      LongStack m1 = new LongStack();
+      LongStack m2 = new LongStack();
+      assertEquals ("empty stacks must have the same hash code;", m1.hashCode(), m2.hashCode());
+      m1.push (3);
+      m1.push (4);
+      m1.op ('+');
+      m2.push (7);
+      assertEquals ("equal stacks must have the same hash code;", m1.hashCode(), m2.hashCode());
+      assertEquals ("size;", 1, m1.size());
+      m1.push (1);
+      m1.push (2);
+      m2.push (2);
+      m2.push (1);
+      assertFalse ("7 1 2 and 7 2 1 must not be equal;", m1.equals (m2));
+      Set<LongStack> set = new HashSet<>();
+      set.add (m1);
+      m2.pop();
+      m2.pop();
+      m2.push (1);
+      m2.push (2);
+      assertTrue ("stack must be usable as a hash key;", set.contains (m2));
+      assertEquals ("hash code must match List.hashCode;",
+         Arrays.asList (7L, 1L, 2L).hashCode(), m2.hashCode());
+   }
+
+   @Test (timeout=1000)
+   public void testWriteTo() throws IOException {
+      LongStack m = new LongStack();
+      assertEquals ("empty stack;", "", m.toString());
+      long[] values = {0, -8, 7, 10, -10, 99, 1000000000000000000L, Long.MAX_VALUE, Long.MIN_VALUE};
+      StringBuilder expected = new StringBuilder();
+      for (int i = 0; i < 3000; i++) {
+         long v = values[i % values.length];
+         m.push (v);
+         expected.append (i == 0 ? "" : " ").append (v);
+      }
+      assertEquals ("toString bottom to top;", expected.toString(), m.toString());
+      StringWriter writer = new StringWriter();
+      m.writeTo (writer);
+      assertEquals ("writeTo(Appendable);", expected.toString(), writer.toString());
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      m.writeTo (Channels.newChannel (bytes));
+      assertEquals ("writeTo(WritableByteChannel);", expected.toString(), bytes.toString ("US-ASCII"));
+      for (int n : new int[] {1, 1023, 1024, 1025, 2048}) {
+         m = new LongStack();
+         expected.setLength (0);
+         for (int i = 0; i < n; i++) {
+            m.push (i);
+            expected.append (i == 0 ? "" : " ").append (i);
+         }
+         assertEquals ("toString of " + n + " elements;", expected.toString(), m.toString());
+      }
+   }
+
+   @Test (timeout=1000)
+   public void testTryInterpret() {
+      RpnResult r = new RpnResult();
+      assertTrue ("correct expression;", LongStack.tryInterpret ("35 10 -3 + /", r));
+      assertEquals ("value;", 5, r.value());
+      String[] pols = {null, " \t", "35 10 -3 + / 2", "67 xxx +", "3 4 + - 5", "4 2 2 - / 1 +"};
+      RpnResult.ErrorKind[] kinds = {RpnResult.ErrorKind.EMPTY, RpnResult.ErrorKind.EMPTY,
+         RpnResult.ErrorKind.REDUNDANT_ELEMENTS, RpnResult.ErrorKind.ILLEGAL_TOKEN,
+         RpnResult.ErrorKind.UNDERFLOW, RpnResult.ErrorKind.DIVISION_BY_ZERO};
+      int[] tokens = {-1, -1, 6, 1, 3, 4};
+      for (int i = 0; i < pols.length; i++) {
+         assertFalse ("expression: " + pols[i], LongStack.tryInterpret (pols[i], r));
+         assertEquals ("error kind of " + pols[i], kinds[i], r.errorKind());
+         assertEquals ("token index of " + pols[i], tokens[i], r.tokenIndex());
+         try {
+            LongStack.interpret (pols[i]);
+            fail ("interpret must throw for " + pols[i]);
+         } catch (RuntimeException e) {
+            assertEquals ("message must be the same as interpret throws;", e.getMessage(), r.message());
+         }
+      }
+      assertEquals ("illegal token;", "xxx", LongStack.tryInterpret ("67 xxx +").token());
+   }
+
+   @Test (timeout=1000)
+   public void testErrorOrder() {
+      String[] pols = {"1 0 / +", "1 0 / 2", "1 0 / foo", "1 +", "foo 1 0 /", "1 2 3 + 4", "5 0 / 0 / +"};
+      RpnResult.ErrorKind[] kinds = {RpnResult.ErrorKind.DIVISION_BY_ZERO,
+         RpnResult.ErrorKind.DIVISION_BY_ZERO, RpnResult.ErrorKind.DIVISION_BY_ZERO,
+         RpnResult.ErrorKind.UNDERFLOW, RpnResult.ErrorKind.ILLEGAL_TOKEN,
+         RpnResult.ErrorKind.REDUNDANT_ELEMENTS, RpnResult.ErrorKind.DIVISION_BY_ZERO};
+      int[] tokens = {2, 2, 2, 1, 0, 5, 2};
+      RpnResult r = new RpnResult();
+      for (int i = 0; i < pols.length; i++) {
+         assertFalse ("expression: " + pols[i], LongStack.tryInterpret (pols[i], r));
+         assertEquals ("first error from the left in " + pols[i], kinds[i], r.errorKind());
+         assertEquals ("token index of " + pols[i], tokens[i], r.tokenIndex());
+         try {
+            LongStack.interpret (pols[i]);
+            fail ("interpret must throw for " + pols[i]);
+         } catch (RuntimeException e) {
+            assertEquals ("interpret reports the same error;", r.message(), e.getMessage());
+         }
+      }
+      try {
+         RpnProgram.compile ("1 0 / +");
+         fail ("compile must reject the structure without running it");
+      } catch (RuntimeException e) {
+         assertTrue (e.getMessage(), e.getMessage().contains ("underflow"));
+      }
+   }
+
+   @Test (timeout=5000)
+   public void testJit() {
+      String[] pols = {"x y * 3 +", "x 8 * y 4 / -", "2 x 1000000 * 70000 y - / +",
+         "x y / y x / +", "0 1 x -5 + -100000 * * +"};
+      long[][] values = {{4, 5}, {-9, 7}, {Long.MIN_VALUE, -1}, {123456789, 0}, {0, 3}};
+      for (String pol : pols) {
+         RpnProgram p = RpnProgram.compile (pol, "x", "y");
+         RpnProgram interpreted = RpnProgram.compile (pol, "x", "y");
+         for (int i = 0; i < RpnJit.THRESHOLD; i++) {
+            p.runWith (i + 1, 7);
+         }
+         assertTrue (pol + " must be compiled after " + RpnJit.THRESHOLD + " runs;", p.isCompiled());
+         assertFalse (pol + " must not be compiled yet;", interpreted.isCompiled());
+         RpnResult expected = new RpnResult();
+         RpnResult actual = new RpnResult();
+         for (long[] v : values) {
+            interpreted.tryRun (v, expected);
+            p.tryRun (v, actual);
+            assertEquals (pol + " with " + v[0] + ", " + v[1], expected.toString(), actual.toString());
+         }
+      }
+      StringBuilder huge = new StringBuilder ("x");
+      for (int i = 0; i < 2000; i++) {
+         huge.append (" y ").append (i * 1000003L).append (" * +");
+      }
+      RpnProgram h = RpnProgram.compile (huge.toString(), "x", "y");
+      assertNull ("method too large for HotSpot must stay interpreted;", RpnJit.compile (h));
+      assertNotNull ("small method;", RpnJit.compile (RpnProgram.compile (pols[0], "x", "y")));
+   }
 
+   @Test (timeout=1000)
+   public void testOperators() throws IOException {
+      assertEquals ("3 4 max 10 %;", 4, LongStack.interpret ("3 4 max 10 %"));
+      assertEquals ("stream;", 16, RpnStreamInterpreter.interpret (new StringReader ("3 4 max 10 % dup *")));
+      assertEquals ("stack words;", -27, LongStack.interpret ("5 3 over - swap dup * - 9 drop"));
+      assertEquals ("unary and bitwise;", -14, LongStack.interpret ("12 5 | neg abs ~"));
+      assertEquals ("pow;", 1024, LongStack.interpret ("2 10 pow"));
+      assertEquals ("shifts;", 23, LongStack.interpret ("-16 2 >> 60 >>> 1 3 << +"));
+      RpnResult r = LongStack.tryInterpret ("7 2 3 - 1 + %");
+      assertEquals ("remainder by zero;", RpnResult.ErrorKind.ARITHMETIC, r.errorKind());
+      assertEquals ("failing token;", 6, r.tokenIndex());
+      assertEquals ("error kind of underflow;", RpnResult.ErrorKind.UNDERFLOW,
+         LongStack.tryInterpret ("5 over").errorKind());
+      assertEquals ("still illegal;", RpnResult.ErrorKind.ILLEGAL_TOKEN,
+         LongStack.tryInterpret ("67 xxx +").errorKind());
+      LongStack m = new LongStack();
+      m.push (5);
+      m.push (-2);
+      m.op ("swap");
+      m.op ("neg");
+      m.op ("over");
+      assertEquals ("op with stack words;", "-2 -5 -2", m.toString());
+      m.op ('^');
+      assertEquals ("op with one-character operator;", "-2 5", m.toString());
+      m.op ("swap");
+      try {
+         m.op ("pow");
+         fail ("negative exponent must throw");
+      } catch (ArithmeticException e) {
+         assertEquals ("stack is unchanged;", "5 -2", m.toString());
+      }
+   }
+
+   @Test (timeout=5000)
+   public void testRegisteredOperator() {
+      assertFalse ("not yet defined;", LongStack.tryInterpret ("7 3 gcd").ok());
+      try {
+         RpnOperators.register ("gcd", (a, b) -> b == 0 ? a : BigInteger.valueOf (a)
+            .gcd (BigInteger.valueOf (b)).longValueExact());
+         RpnOperators.register ("sqrt", a -> {
+            if (a < 0) {
+               throw new ArithmeticException ("Square root of negative number " + a);
+            }
+            return (long) Math.sqrt (a);
+         });
+         assertEquals ("registered binary operator;", 6, LongStack.interpret ("7 3 gcd 84 18 gcd *"));
+         assertEquals ("registered unary operator;", 7, LongStack.interpret ("50 sqrt"));
+         for (String name : new String[] {"gcd", "+", "", "1x", "-5", "a b"}) {
+            try {
+               RpnOperators.register (name, a -> a);
+               fail ("must not register " + name);
+            } catch (IllegalArgumentException e) {
+               // expected
+            }
+         }
+         RpnProgram p = RpnProgram.compile ("x sqrt y gcd dup +", "x", "y");
+         RpnProgram o = p.optimize();
+         long[] out = new long[3];
+         p.evaluateColumns (new long[][] {{16, 100, 81}, {6, 15, 0}}, out);
+         assertArrayEquals ("columns;", new long[] {4, 10, 18}, out);
+         try {
+            o.evaluateColumns (new long[][] {{16, -100, 81}, {6, 15, 0}}, out);
+            fail ("negative square root must throw");
+         } catch (RuntimeException e) {
+            assertTrue ("row must be reported;", e.getMessage().contains ("row 1"));
+         }
+         RpnResult expected = new RpnResult();
+         RpnResult actual = new RpnResult();
+         for (int i = 0; i < RpnJit.THRESHOLD + 2; i++) {
+            p.tryRun (new long[] {i - 1, 4}, expected);
+            o.tryRun (new long[] {i - 1, 4}, actual);
+            assertEquals ("optimized and compiled;", expected.toString(), actual.toString());
+         }
+         assertTrue ("compiled;", p.isCompiled());
+         p.tryRun (new long[] {-1, 4}, actual);
+         assertEquals ("error from compiled code;", RpnResult.ErrorKind.ARITHMETIC, actual.errorKind());
+         assertEquals ("failing token;", 1, actual.tokenIndex());
+         assertTrue ("gcd is cached;", LongStack.programCache().size() > 0);
+         RpnOperators.unregister ("gcd");
+         assertFalse ("unregistered;", LongStack.tryInterpret ("7 3 gcd 84 18 gcd *").ok());
+         assertEquals ("other operators stay;", 7, LongStack.interpret ("50 sqrt"));
+         try {
+            RpnOperators.unregister ("+");
+            fail ("must not unregister a built-in operator");
+         } catch (IllegalArgumentException e) {
+            // expected
+         }
+      } finally {
+         for (String name : new String[] {"gcd", "sqrt"}) {
+            if (RpnOperators.isDefined (name)) {
+               RpnOperators.unregister (name);
+            }
+         }
+      }
+      assertFalse ("test must not leave operators behind;", RpnOperators.isDefined ("sqrt"));
+   }
+
+   @Test (timeout=5000)
+   public void testUnregisterWholeToken() {
+      assertTrue ("rpn token;", RpnProgram.hasToken ("1 2 >>", ">>"));
+      assertFalse ("rpn longer token;", RpnProgram.hasToken ("1 2 >>>", ">>"));
+      assertFalse ("rpn prefix;", RpnProgram.hasToken (">>> 1 2", ">>"));
+      assertTrue ("infix token;", RpnInfixCompiler.hasToken ("a>>b", ">>"));
+      assertFalse ("infix longer token;", RpnInfixCompiler.hasToken ("a>>>b", ">>"));
+      assertFalse ("infix identifier;", RpnInfixCompiler.hasToken ("max2(a, b)", "max"));
+      assertTrue ("infix function;", RpnInfixCompiler.hasToken ("1+max(a,b)", "max"));
+      try {
+         RpnOperators.register ("mix", (a, b) -> a * 31 + b);
+         RpnOperators.register ("mixx", (a, b) -> a * 17 + b);
+         assertEquals ("mixx;", 7 * 17 + 2, LongStack.interpret ("7 2 mixx"));
+         assertEquals ("mixx infix;", 7 * 17 + 2, LongStack.interpretInfix ("mixx(7, 2)"));
+         RpnOperators.unregister ("mix");
+         long hits = LongStack.programCache().hits();
+         long infixHits = LongStack.infixCache().hits();
+         assertEquals ("mixx still cached;", 7 * 17 + 2, LongStack.interpret ("7 2 mixx"));
+         assertEquals ("mixx infix still cached;", 7 * 17 + 2, LongStack.interpretInfix ("mixx(7, 2)"));
+         assertEquals ("rpn hit;", hits + 1, LongStack.programCache().hits());
+         assertEquals ("infix hit;", infixHits + 1, LongStack.infixCache().hits());
+      } finally {
+         for (String name : new String[] {"mix", "mixx"}) {
+            if (RpnOperators.isDefined (name)) {
+               RpnOperators.unregister (name);
+            }
+         }
+      }
+   }
+
+   @Test (timeout=5000)
+   public void testOffHeap() {
+      int n = 3000000;
+      OffHeapLongStack m = new OffHeapLongStack();
+      try {
+         assertTrue ("new stack must be empty;", m.stEmpty());
+         for (int i = 0; i < n; i++) {
+            m.push (i);
+         }
+         assertEquals ("size;", n, m.size());
+         assertEquals ("top;", n - 1, m.tos());
+         m.op ("+");
+         m.op ("swap");
+         assertEquals ("swap;", n - 3, m.pop());
+         assertEquals ("sum;", 2 * n - 3, m.pop());
+         for (int i = n - 4; i >= 0; i--) {
+            assertEquals ("pop order;", i, m.pop());
+         }
+         assertTrue ("popped stack must be empty;", m.stEmpty());
+         m.push (7);
+         m.push (-2);
+         m.op ('*');
+         m.op ("dup");
+         m.push (0);
+         try {
+            m.op ("/");
+            fail ("division by zero must throw");
+         } catch (ArithmeticException e) {
+            assertEquals ("stack is unchanged;", "-14 -14 0", m.toString());
+         }
+         try {
+            m.op ('?');
+            fail ("unknown operator must throw");
+         } catch (RuntimeException e) {
+            assertEquals ("message;", "Illegal operation: ?", e.getMessage());
+         }
+         m.op ('-');
+         assertEquals ("op(char);", "-14 -14", m.toString());
+      } finally {
+         m.close();
+      }
+      assertTrue ("closed;", m.isClosed());
+      try {
+         m.push (1);
+         fail ("closed stack must not be used");
+      } catch (IllegalStateException e) {
+         // expected
+      }
+      m.close();
+   }
+
+   @Test (timeout=1000)
+   public void testBulk() {
+      long[] values = new long[100000];
+      for (int i = 0; i < values.length; i++) {
+         values[i] = i - 50000;
+      }
+      LongStack m = new LongStack();
+      m.push (7);
+      m.pushAll (values, 10, values.length - 10);
+      assertEquals ("size after pushAll;", values.length - 9, m.size());
+      assertEquals ("top after pushAll;", values[values.length - 1], m.tos());
+      long[] popped = new long[values.length];
+      m.popInto (popped, 10, values.length - 10);
+      assertArrayEquals ("popInto restores the order of pushAll;",
+         Arrays.copyOfRange (values, 10, values.length),
+         Arrays.copyOfRange (popped, 10, values.length));
+      assertEquals ("element below stays;", "7", m.toString());
+      try {
+         m.popInto (popped, 0, 2);
+         fail ("popInto must check the depth");
+      } catch (RuntimeException e) {
+         assertEquals ("failed popInto must not change the stack;", "7", m.toString());
+      }
+      m.pushAll (new long[] {20, 10, 5, 3}, 0, 4);
+      LongStack n = new LongStack();
+      n.push (7);
+      n.pushAll (new long[] {20, 10, 5, 3}, 0, 4);
+      m.opN ("-", 4);
+      for (int i = 0; i < 3; i++) {
+         n.op ("-");
+      }
+      assertEquals ("opN is k - 1 calls of op;", n, m);
+      m.pushAll (new long[] {4, 0, 9}, 0, 3);
+      try {
+         m.opN ("/", 3);
+         fail ("division by zero must throw");
+      } catch (ArithmeticException e) {
+         assertEquals ("failed opN must not change the stack;", "7 12 4 0 9", m.toString());
+      }
+      m.opN ("max", 5);
+      assertEquals ("max of all;", "12", m.toString());
+      try {
+         m.opN ("+", 2);
+         fail ("opN must check the depth");
+      } catch (RuntimeException e) {
+         assertTrue ("underflow message;", e.getMessage().contains ("underflow"));
+      }
+   }
+
+   @Test (timeout=5000)
+   public void testMetrics() throws Exception {
+      RpnMetrics metrics = RpnMetrics.get();
+      RpnMetrics.enable();
+      try {
+         metrics.reset();
+         assertEquals ("value with metrics;", 5, LongStack.interpret ("35 10 -3 + /"));
+         assertEquals ("value with metrics;", 49, LongStack.interpret ("7 dup *"));
+         assertFalse ("illegal token;", LongStack.tryInterpret ("67 xxx +").ok());
+         try {
+            LongStack.interpret ("3 4 + - 5");
+            fail ("underflow must throw");
+         } catch (RuntimeException e) {
+            assertTrue ("message is unchanged;", e.getMessage().contains ("underflow"));
+         }
+         assertEquals ("infix is not measured;", 3, LongStack.interpretInfix ("1 + 2"));
+         assertEquals ("calls;", 4, metrics.getCalls());
+         assertEquals ("tokens up to the failing one;", 5 + 3 + 2 + 4, metrics.getTokens());
+         assertEquals ("+ count;", Long.valueOf (2), metrics.getOperatorCounts().get ("+"));
+         assertEquals ("dup count;", Long.valueOf (1), metrics.getOperatorCounts().get ("dup"));
+         assertEquals ("illegal token count;", Long.valueOf (1), metrics.getErrorCounts().get ("ILLEGAL_TOKEN"));
+         assertEquals ("underflow count;", Long.valueOf (1), metrics.getErrorCounts().get ("UNDERFLOW"));
+         assertEquals ("max depth;", 3, metrics.getMaxDepthMax());
+         assertEquals ("latencies;", 4, metrics.latencyHistogram().count());
+         assertTrue ("latency percentiles;", metrics.getLatencyP50Nanos() <= metrics.getLatencyMaxNanos());
+         ObjectName name = new ObjectName ("LongStack:type=RpnMetrics");
+         assertEquals ("JMX attribute;", 4L, ManagementFactory.getPlatformMBeanServer()
+            .getAttribute (name, "Calls"));
+      } finally {
+         RpnMetrics.disable();
+      }
+      LongStack.interpret ("1 2 +");
+      assertEquals ("disabled metrics must not record;", 4, metrics.getCalls());
+      RpnMetrics.Histogram h = new RpnMetrics.Histogram();
+      for (int i = 1; i <= 1000; i++) {
+         h.record (i * 1000L);
+      }
+      assertEquals ("count;", 1000, h.count());
+      long p99 = h.percentile (99);
+      assertTrue ("p99 within 1/16 of 990000: " + p99, Math.abs (p99 - 990000) <= 990000 / 16);
+      assertEquals ("max;", 1000000, h.percentile (100));
+   }
+
+   @Test (timeout=1000)
+   public void testInfix() {
+      String[] infix = {"(35 + 5) / (3 - 13)", "2 + 3 * 4 - 5", "-x * -(y - 2)", "1 << 4 | 3 & 6 ^ 1",
+         "max(x, abs(y)) % 7", "-9223372036854775808 + -x", "x - y - 1", "~ + - x"};
+      String[] rpn = {"35 5 + 3 13 - /", "2 3 4 * + 5 -", "-1 x * y 2 - neg *", "1 4 << 3 6 & 1 ^ |",
+         "x y abs max 7 %", "-9223372036854775808 x neg +", "x y - 1 -", "x neg ~"};
+      for (int i = 0; i < infix.length; i++) {
+         RpnProgram a = RpnProgram.compileInfix (infix[i], "x", "y");
+         RpnProgram b = RpnProgram.compile (rpn[i], "x", "y");
+         for (long[] v : new long[][] {{3, -8}, {-20, 5}, {0, 1}}) {
+            assertEquals (infix[i] + " with " + v[0] + ", " + v[1], b.runWith (v), a.runWith (v));
+         }
+      }
+      assertTrue ("same program as RPN;", Arrays.equals (RpnProgram.compile ("35 5 + 3 13 - /").code(),
+         RpnProgram.compileInfix ("(35 + 5) / (3 - 13)").code()));
+      LongStack.infixCache().clear();
+      assertEquals ("interpretInfix;", -4, LongStack.interpretInfix ("(35 + 5) / (3 - 13)"));
+      assertEquals ("interpretInfix;", -4, LongStack.interpretInfix ("(35 + 5) / (3 - 13)"));
+      assertEquals ("cache hit;", 1, LongStack.infixCache().hits());
+      String[] bad = {"", "(1 + 2", "1 + 2)", "1 +", "2 3", "max(1)", "1 $ 2", "x + 1", "1, 2", "4 / (2 - 2)"};
+      RpnResult.ErrorKind[] kinds = {RpnResult.ErrorKind.EMPTY, RpnResult.ErrorKind.SYNTAX,
+         RpnResult.ErrorKind.SYNTAX, RpnResult.ErrorKind.SYNTAX, RpnResult.ErrorKind.SYNTAX,
+         RpnResult.ErrorKind.SYNTAX, RpnResult.ErrorKind.ILLEGAL_TOKEN, RpnResult.ErrorKind.ILLEGAL_TOKEN,
+         RpnResult.ErrorKind.SYNTAX, RpnResult.ErrorKind.DIVISION_BY_ZERO};
+      RpnResult r = new RpnResult();
+      for (int i = 0; i < bad.length; i++) {
+         LongStack.infixCache().lookup (bad[i]).tryRun (null, r);
+         assertEquals ("error kind of " + bad[i], kinds[i], r.errorKind());
+         try {
+            LongStack.interpretInfix (bad[i]);
+            fail ("must throw for " + bad[i]);
+         } catch (RuntimeException e) {
+            assertEquals ("message;", r.message(), e.getMessage());
+         }
+      }
+      assertEquals ("failing division token;", 1, r.tokenIndex());
+   }
+
+   @Test (timeout=10000)
+   public void testServer() throws Exception {
+      Path socket = Files.createTempDirectory ("rpn").resolve ("rpn.sock");
+      SocketAddress[] addresses = {
+         new InetSocketAddress (InetAddress.getLoopbackAddress(), 0),
+         UnixDomainSocketAddress.of (socket)};
+      for (SocketAddress address : addresses) {
+         try (RpnServer server = new RpnServer (address, 4)) {
+            SocketAddress bound = server.address();
+            StringBuilder requests = new StringBuilder();
+            StringBuilder expected = new StringBuilder();
+            for (int i = 0; i < 20000; i++) {
+               if (i % 1000 == 7) {
+                  requests.append ("3 0 /\n");
+                  expected.append ("ERR ").append (LongStack.tryInterpret ("3 0 /").message()).append ('\n');
+               } else {
+                  requests.append (i).append (" 2 *\r\n");
+                  expected.append (2L * i).append ('\n');
+               }
+            }
+            try (SocketChannel channel = SocketChannel.open (bound)) {
+               byte[] bytes = requests.toString().getBytes ("US-ASCII");
+               Thread writer = new Thread (() -> {
+                  try {
+                     ByteBuffer out = ByteBuffer.wrap (bytes);
+                     while (out.hasRemaining()) {
+                        channel.write (out);
+                     }
+                     channel.shutdownOutput();
+                  } catch (IOException e) {
+                     throw new UncheckedIOException (e);
+                  }
+               });
+               writer.start();
+               ByteArrayOutputStream response = new ByteArrayOutputStream();
+               ByteBuffer in = ByteBuffer.allocate (8192);
+               while (channel.read (in) >= 0) {
+                  response.write (in.array(), 0, in.position());
+                  in.clear();
+               }
+               writer.join();
+               assertEquals ("responses in request order over " + address, expected.toString(),
+                  response.toString ("US-ASCII"));
+            }
+            RpnLoadClient.Report report = RpnLoadClient.run (bound, 2, 5000, 64, "1 2 +");
+            assertEquals ("all responses;", 10000, report.requests());
+            assertEquals ("no errors;", 0, report.errors());
+            assertTrue ("p99 latency;", report.latencies().percentile (99) > 0);
+         }
+      }
+      assertFalse ("socket file is removed;", Files.exists (socket));
+   }
+
+   @Test (timeout=30000)
+   public void testServerBackpressure() throws Exception {
+      try (RpnServer server = new RpnServer (new InetSocketAddress (InetAddress.getLoopbackAddress(), 0), 2);
+           SocketChannel channel = SocketChannel.open (server.address())) {
+         StringBuilder line = new StringBuilder();
+         for (int i = 0; i < 1000; i++) {
+            line.append ("1 ");
+         }
+         // each request echoes itself in its error message, so unread
+         // responses are as large as the requests
+         ByteBuffer request = ByteBuffer.wrap (line.append ('\n').toString().getBytes ("US-ASCII"));
+         channel.configureBlocking (false);
+         long sent = 0;
+         long idleSince = System.nanoTime();
+         while (sent < (256L << 20) && System.nanoTime() - idleSince < 2_000_000_000L) {
+            if (!request.hasRemaining()) {
+               request.rewind();
+            }
+            int n = channel.write (request);
+            if (n > 0) {
+               sent += n;
+               idleSince = System.nanoTime();
+            } else {
+               Thread.sleep (1);
+            }
+         }
+         assertTrue ("server must stop reading a client that does not read, sent " + sent,
+            sent < (64L << 20));
+      }
+   }
+
+   @Test (timeout=10000)
+   public void testServerOperatorFailure() throws Exception {
+      RpnOperators.register ("boom", a -> {
+         throw new IllegalStateException ("boom on " + a);
+      });
+      try (RpnServer server = new RpnServer (new InetSocketAddress (InetAddress.getLoopbackAddress(), 0), 2);
+           SocketChannel channel = SocketChannel.open (server.address())) {
+         channel.write (ByteBuffer.wrap ("1 boom\n2 3 +\n".getBytes ("US-ASCII")));
+         channel.shutdownOutput();
+         ByteArrayOutputStream response = new ByteArrayOutputStream();
+         ByteBuffer buffer = ByteBuffer.allocate (256);
+         while (channel.read (buffer) >= 0) {
+            response.write (buffer.array(), 0, buffer.position());
+            buffer.clear();
+         }
+         assertEquals ("failing operator must not hold up later responses;", "ERR boom on 1\n5\n",
+            response.toString ("US-ASCII"));
+      } finally {
+         RpnOperators.unregister ("boom");
+      }
+   }
+
+   @Test (timeout=10000)
+   public void testLoadClientFailure() throws Exception {
+      try (ServerSocketChannel server = ServerSocketChannel.open()) {
+         server.bind (new InetSocketAddress (InetAddress.getLoopbackAddress(), 0));
+         Thread peer = new Thread (() -> {
+            try (SocketChannel client = server.accept()) {
+               client.read (ByteBuffer.allocate (16));
+            } catch (IOException e) {
+               throw new UncheckedIOException (e);
+            }
+         });
+         peer.start();
+         try {
+            RpnLoadClient.run (server.getLocalAddress(), 1, 1000, 4, "1 2 +");
+            fail ("a closed connection must be reported");
+         } catch (IOException e) {
+            // closed or reset, depending on what the peer left unread
+         }
+         peer.join();
+      }
+   }
+
+}
@@ -0,0 +1,139 @@
+import java.util.Random;
+
+/** Throughput of the batch kernels of <code>QuaternionArray</code> (the
+ * product, <code>times(double, dest)</code>, <code>dot</code> and
+ * <code>norm</code>) against a loop over the matching methods of
+ * <code>Quaternion</code> on the same data.
+ * Usage: <code>QuaternionBenchmark [size ...]</code>, by default 1K, 1M
+ * and 10M quaternions. Every loop runs ten rounds of about 0.1 s each;
+ * the best round is reported, so the first ones serve as warm-up.
+ * 10M quaternions take about 2 GB of heap (<code>-Xmx3g</code>).
+ * <p>The benchmark is kept out of <code>src</code> and compiled together
+ * with it: <code>javac -d out src/*.java bench/*.java</code>, then
+ * <code>java -Xmx3g -cp out QuaternionBenchmark</code>.
+ */
+public final class QuaternionBenchmark {
+
+   private static final long ROUND_NANOS = 100_000_000L;
+   private static final int ROUNDS = 10;
+   /** Coefficient of the scale kernel. */
+   private static final double SCALE = -2.5;
+
+   private QuaternionBenchmark() {
+   }
+
+   /** Runs the benchmark and prints one line per size and kernel.
+    * @param args sizes, default 1000 1000000 10000000
+    */
+   public static void main (String[] args) {
+      int[] sizes = { 1_000, 1_000_000, 10_000_000 };
+      if (args.length > 0) {
+         sizes = new int[args.length];
+         for (int i = 0; i < args.length; i++) {
+            sizes[i] = Integer.parseInt(args[i]);
+         }
+      }
+      for (int n : sizes) {
+         System.out.println(run(n));
+      }
+   }
+
+   /** Measures the four kernels on n random quaternions.
+    * @param n number of quaternions
+    * @return report with one line per kernel: operations per second of
+    *     the loop over Quaternion, of QuaternionArray and their ratio
+    */
+   static String run (int n) {
+      if (n < 1) {
+         throw new IllegalArgumentException("Benchmark size must be positive, got " + n);
+      }
+      Random random = new Random(n);
+      Quaternion[] xs = new Quaternion[n];
+      Quaternion[] ys = new Quaternion[n];
+      Quaternion[] rs = new Quaternion[n];
+      double[] ds = new double[n];
+      QuaternionArray x = new QuaternionArray(n);
+      QuaternionArray y = new QuaternionArray(n);
+      QuaternionArray r = new QuaternionArray(n);
+      double[] dots = new double[n];
+      for (int i = 0; i < n; i++) {
+         xs[i] = new Quaternion(random.nextGaussian(), random.nextGaussian(), random.nextGaussian(),
+            random.nextGaussian());
+         ys[i] = new Quaternion(random.nextGaussian(), random.nextGaussian(), random.nextGaussian(),
+            random.nextGaussian());
+         x.set(i, xs[i]);
+         y.set(i, ys[i]);
+      }
+      StringBuilder report = new StringBuilder();
+
+      double objects = best(n, () -> {
+         for (int i = 0; i < n; i++) {
+            rs[i] = xs[i].times(ys[i]);
+         }
+      });
+      double batch = best(n, () -> x.times(y, r));
+      check("product", rs[n - 1].equals(r.get(n - 1)), n);
+      report.append(line(n, "times", objects, batch));
+
+      objects = best(n, () -> {
+         for (int i = 0; i < n; i++) {
+            rs[i] = xs[i].times(SCALE);
+         }
+      });
+      batch = best(n, () -> x.times(SCALE, r));
+      check("scale", rs[n - 1].equals(r.get(n - 1)), n);
+      report.append(System.lineSeparator()).append(line(n, "times(double)", objects, batch));
+
+      objects = best(n, () -> {
+         for (int i = 0; i < n; i++) {
+            ds[i] = xs[i].dotMult(ys[i]).getRpart();
+         }
+      });
+      batch = best(n, () -> x.dot(y, dots));
+      check("dot product", Math.abs(ds[n - 1] - dots[n - 1]) < Quaternion.THRESHOLD, n);
+      report.append(System.lineSeparator()).append(line(n, "dot", objects, batch));
+
+      objects = best(n, () -> {
+         for (int i = 0; i < n; i++) {
+            ds[i] = xs[i].norm();
+         }
+      });
+      batch = best(n, () -> x.norm(dots));
+      check("norm", Math.abs(ds[n - 1] - dots[n - 1]) < Quaternion.THRESHOLD, n);
+      report.append(System.lineSeparator()).append(line(n, "norm", objects, batch));
+      return report.toString();
+   }
+
+   /** Best rate of ROUNDS rounds of about ROUND_NANOS each, so the first
+    * rounds serve as warm-up.
+    * @param n quaternions handled by one call of the kernel
+    * @param kernel loop over the n quaternions
+    * @return quaternions per second in the best round
+    */
+   private static double best (int n, Runnable kernel) {
+      double best = 0;
+      for (int round = 0; round < ROUNDS; round++) {
+         long count = 0;
+         long start = System.nanoTime();
+         long elapsed;
+         do {
+            kernel.run();
+            count += n;
+         } while ((elapsed = System.nanoTime() - start) < ROUND_NANOS);
+         best = Math.max(best, count * 1e9 / elapsed);
+      }
+      return best;
+   }
+
+   private static void check (String kernel, boolean same, int n) {
+      if (!same) {
+         throw new IllegalStateException("Batch " + kernel + " differs from the Quaternion loop at " + (n - 1));
+      }
+   }
+
+   private static String line (int n, String kernel, double objects, double batch) {
+      return String.format("%,d quaternions, %s: Quaternion %.1f M/s, QuaternionArray %.1f M/s (%.1fx)",
+         n, kernel, objects / 1e6, batch / 1e6, batch / objects);
+   }
+
+}
@@ -0,0 +1,189 @@
+/** Quaternion that is changed in place, for accumulating long products
+ * or sums without allocating a <code>Quaternion</code> per step. The
+ * operations use the same formulas as <code>Quaternion</code> and return
+ * <code>this</code>, so they can be chained:
+ * <code>acc.timesInPlace(step).normalizeInPlace()</code>.
+ */
+public final class MutableQuaternion {
+
+   private double a, b, c, d;
+
+   /** Zero quaternion. */
+   public MutableQuaternion() {
+   }
+
+   /** Constructor from four double values.
+    * @param a real part
+    * @param b imaginary part i
+    * @param c imaginary part j
+    * @param d imaginary part k
+    */
+   public MutableQuaternion (double a, double b, double c, double d) {
+      set(a, b, c, d);
+   }
+
+   /** Copy of an immutable quaternion.
+    * @param q initial value
+    */
+   public MutableQuaternion (Quaternion q) {
+      set(q);
+   }
+
+   /** Real part of the quaternion.
+    * @return real part
+    */
+   public double getRpart() {
+      return a;
+   }
+
+   /** Imaginary part i of the quaternion.
+    * @return imaginary part i
+    */
+   public double getIpart() {
+      return b;
+   }
+
+   /** Imaginary part j of the quaternion.
+    * @return imaginary part j
+    */
+   public double getJpart() {
+      return c;
+   }
+
+   /** Imaginary part k of the quaternion.
+    * @return imaginary part k
+    */
+   public double getKpart() {
+      return d;
+   }
+
+   /** Replaces the value by a+bi+cj+dk.
+    * @param a real part
+    * @param b imaginary part i
+    * @param c imaginary part j
+    * @param d imaginary part k
+    * @return <code>this</code>
+    */
+   public MutableQuaternion set (double a, double b, double c, double d) {
+      this.a = a;
+      this.b = b;
+      this.c = c;
+      this.d = d;
+      return this;
+   }
+
+   /** Replaces the value by that of an immutable quaternion.
+    * @param q new value
+    * @return <code>this</code>
+    */
+   public MutableQuaternion set (Quaternion q) {
+      return set(q.getRpart(), q.getIpart(), q.getJpart(), q.getKpart());
+   }
+
+   /** Replaces the value by that of another mutable quaternion.
+    * @param q new value
+    * @return <code>this</code>
+    */
+   public MutableQuaternion set (MutableQuaternion q) {
+      return set(q.a, q.b, q.c, q.d);
+   }
+
+   /** Replaces the value by an element of a quaternion array.
+    * @param array source
+    * @param i index
+    * @return <code>this</code>
+    */
+   public MutableQuaternion set (QuaternionArray array, int i) {
+      return set(array.a[i], array.b[i], array.c[i], array.d[i]);
+   }
+
+   /** Immutable copy of the current value.
+    * @return new quaternion equal to <code>this</code>
+    */
+   public Quaternion toQuaternion() {
+      return new Quaternion(a, b, c, d);
+   }
+
+   /** Adds a quaternion, <code>this = this + q</code>.
+    * @param q addend
+    * @return <code>this</code>
+    */
+   public MutableQuaternion plusInPlace (Quaternion q) {
+      return set(a + q.getRpart(), b + q.getIpart(), c + q.getJpart(), d + q.getKpart());
+   }
+
+   /** Adds a quaternion, <code>this = this + q</code>.
+    * @param q addend
+    * @return <code>this</code>
+    */
+   public MutableQuaternion plusInPlace (MutableQuaternion q) {
+      return set(a + q.a, b + q.b, c + q.c, d + q.d);
+   }
+
+   /** Multiplies by a quaternion on the right, <code>this = this * q</code>.
+    * @param q factor
+    * @return <code>this</code>
+    */
+   public MutableQuaternion timesInPlace (Quaternion q) {
+      return times(q.getRpart(), q.getIpart(), q.getJpart(), q.getKpart());
+   }
+
+   /** Multiplies by a quaternion on the right, <code>this = this * q</code>.
+    * <code>q</code> may be <code>this</code>.
+    * @param q factor
+    * @return <code>this</code>
+    */
+   public MutableQuaternion timesInPlace (MutableQuaternion q) {
+      return times(q.a, q.b, q.c, q.d);
+   }
+
+   /** Multiplies by a coefficient, <code>this = this * r</code>.
+    * @param r coefficient
+    * @return <code>this</code>
+    */
+   public MutableQuaternion timesInPlace (double r) {
+      return set(a * r, b * r, c * r, d * r);
+   }
+
+   /** Replaces the value by its conjugate a-bi-cj-dk.
+    * @return <code>this</code>
+    */
+   public MutableQuaternion conjugateInPlace() {
+      return set(a, -b, -c, -d);
+   }
+
+   /** Scales the value to norm 1.
+    * @return <code>this</code>
+    * @throws ArithmeticException if the quaternion is (close to) zero
+    */
+   public MutableQuaternion normalizeInPlace() {
+      double norm = norm();
+      if (norm < Quaternion.THRESHOLD) {
+         throw new ArithmeticException("Cannot normalize zero quaternion");
+      }
+      return timesInPlace(1.0 / norm);
+   }
+
+   /** Norm of the quaternion, Math.sqrt(a*a+b*b+c*c+d*d).
+    * @return norm of <code>this</code>
+    */
+   public double norm() {
+      return Math.sqrt(a * a + b * b + c * c + d * d);
+   }
+
+   /** Conversion to the string in the form of <code>Quaternion.toString</code>.
+    * @return "a+bi+cj+dk"
+    */
+   @Override
+   public String toString() {
+      return toQuaternion().toString();
+   }
+
+   private MutableQuaternion times (double a2, double b2, double c2, double d2) {
+      return set(a * a2 - b * b2 - c * c2 - d * d2,
+              a * b2 + b * a2 + c * d2 - d * c2,
+              a * c2 - b * d2 + c * a2 + d * b2,
+              a * d2 + b * c2 - c * b2 + d * a2);
+   }
+
+}
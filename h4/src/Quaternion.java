@@ -1,12 +1,10 @@
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /** Quaternions. Basic operations. */
 public class Quaternion {
 
    private double a, b, c, d;
-   private static final double THRESHOLD = 0.000001;
+   static final double THRESHOLD = 0.000001;
 
    /** Constructor from four double values.
     * @param a real part
@@ -62,49 +60,20 @@ public class Quaternion {
    }
 
    /** Conversion from the string to the quaternion. 
-    * Reverse to <code>toString</code> method.
+    * Reverse to <code>toString</code> method. Reads the string in one
+    * pass, see <code>QuaternionParser</code>.
     * @throws IllegalArgumentException if string s does not represent 
     *     a quaternion (defined by the <code>toString</code> method)
     * @param s string of form produced by the <code>toString</code> method
     * @return a quaternion represented by string s
     */
    public static Quaternion valueOf (String s) {
-      double a = 0.0, b = 0.0, c = 0.0, d = 0.0;
-
-      String regex = "([+-]?\\d+(?:\\.\\d+)?(?:[eE][+-]?\\d+)?)([ijk])?";
-      Pattern pattern = Pattern.compile(regex);
-      Matcher matcher = pattern.matcher(s);
-
-      while (matcher.find()) {
-         String numericValue = matcher.group(1);
-         String component = matcher.group(2);
-
-         double value;
-         try {
-            value = Double.parseDouble(numericValue);
-         } catch (NumberFormatException e) {
-            throw new IllegalArgumentException("Invalid number format in quaternion string: " + numericValue + " from " + s, e);
-         }
-
-         if (component != null) {
-            switch (component.charAt(0)) {
-               case 'i':
-                  b = value;
-                  break;
-               case 'j':
-                  c = value;
-                  break;
-               case 'k':
-                  d = value;
-                  break;
-               default:
-                  throw new IllegalArgumentException("Invalid imaginary part in quaternion string: " + component + " from " + s);
-            }
-         } else {
-            a = value;
-         }
+      if (s == null) {
+         throw new IllegalArgumentException("Quaternion string is null");
       }
-      return new Quaternion(a, b, c, d);
+      QuaternionParser parser = new QuaternionParser();
+      parser.parse(s, 0, s.length());
+      return new Quaternion(parser.a, parser.b, parser.c, parser.d);
    }
 
    /** Clone of the quaternion.
@@ -257,21 +226,87 @@ public class Quaternion {
       return Math.sqrt(a * a + b * b + c * c + d * d);
    }
 
-   public Quaternion pow(int n) {
-      if (n == 0) {
-         return new Quaternion(1, 0, 0, 0);
-      } else if (n == 1) {
-         return new Quaternion(a, b, c, d);
-      } else if (n == -1) {
+   /** Integer power of the quaternion by binary exponentiation: squares
+    * <code>this</code> repeatedly and multiplies the squares that
+    * correspond to the one bits of |n|, so it takes O(log |n|)
+    * multiplications. For negative n the inverse is computed once and
+    * raised to the power -n.
+    * @param n exponent
+    * @return quaternion <code>this</code> to the power n, 1 for n = 0
+    * @throws ArithmeticException if n is negative and <code>this</code> is (close to) zero
+    */
+   public Quaternion pow (int n) {
+      double ba = a, bb = b, bc = c, bd = d;
+      if (n < 0) {
          if (this.isZero()) {
-            throw new ArithmeticException("Division by zero");
+            throw new ArithmeticException("Division by zero: cannot raise the (close to) zero quaternion "
+               + this + " to the negative power " + n);
+         }
+         Quaternion inverse = this.inverse();
+         ba = inverse.a;
+         bb = inverse.b;
+         bc = inverse.c;
+         bd = inverse.d;
+      }
+      long e = Math.abs((long) n);
+      double ra = 1, rb = 0, rc = 0, rd = 0;
+      while (e != 0) {
+         if ((e & 1) != 0) {
+            double na = ra * ba - rb * bb - rc * bc - rd * bd;
+            double nb = ra * bb + rb * ba + rc * bd - rd * bc;
+            double nc = ra * bc - rb * bd + rc * ba + rd * bb;
+            double nd = ra * bd + rb * bc - rc * bb + rd * ba;
+            ra = na;
+            rb = nb;
+            rc = nc;
+            rd = nd;
+         }
+         e >>>= 1;
+         if (e != 0) {
+            // the square of a+v is a*a-|v|^2 + 2av
+            double sa = ba * ba - bb * bb - bc * bc - bd * bd;
+            bb = 2 * ba * bb;
+            bc = 2 * ba * bc;
+            bd = 2 * ba * bd;
+            ba = sa;
          }
-         return this.inverse();
-      } else if (n > 1) {
-         return this.times(this.pow(n - 1));
-      } else { // n < -1
-         return this.pow(-n).inverse();
       }
+      return new Quaternion(ra, rb, rc, rd);
+   }
+
+   /** Real power of the quaternion in polar form. With
+    * this = |q|(cos(theta) + u sin(theta)), where u is the unit vector of
+    * the imaginary part, the power is
+    *     pow(q, t) = exp(t*log(q)) = |q|^t (cos(t*theta) + u sin(t*theta))
+    * A (close to) real number, whose imaginary part is tiny compared to
+    * its norm, has no reliable u; then u = i is taken, which matters for
+    * negative numbers only. Exponents within THRESHOLD of 0 and 1 give 1
+    * and a copy of <code>this</code> exactly, as <code>pow(int)</code>
+    * does; small quaternions are not rounded to zero.
+    * @param t exponent
+    * @return quaternion <code>this</code> to the power t
+    * @throws ArithmeticException if t is negative and <code>this</code> is (close to) zero
+    */
+   public Quaternion pow (double t) {
+      if (Math.abs(t) < THRESHOLD) {
+         return new Quaternion(1, 0, 0, 0);
+      }
+      if (Math.abs(t - 1) < THRESHOLD) {
+         return new Quaternion(a, b, c, d);
+      }
+      double vNorm = Math.sqrt(b * b + c * c + d * d);
+      double norm = Math.sqrt(a * a + vNorm * vNorm);
+      if (t < 0 && norm < THRESHOLD) {
+         throw new ArithmeticException("Division by zero: cannot raise the (close to) zero quaternion "
+            + this + " to the negative power " + t);
+      }
+      double theta = Math.atan2(vNorm, a);
+      double scale = Math.pow(norm, t);
+      double s = scale * Math.sin(t * theta);
+      if (vNorm <= THRESHOLD * norm) {
+         return new Quaternion(scale * Math.cos(t * theta), a < 0 ? s : 0, 0, 0);
+      }
+      return new Quaternion(scale * Math.cos(t * theta), s * b / vNorm, s * c / vNorm, s * d / vNorm);
    }
 
    /** Main method for testing purposes. 
@@ -0,0 +1,296 @@
+import java.util.Arrays;
+
+/** Fixed-size array of quaternions stored as four <code>double[]</code>
+ * columns, one per component (structure of arrays). The batch operations
+ * apply the <code>Quaternion</code> operation of the same name to every
+ * index and write into a destination array, so processing n quaternions
+ * allocates nothing per element. A destination may be one of the operands.
+ * <p>The loops of <code>times</code>, <code>dot</code> and <code>norm</code>
+ * are kept free of calls, branches and field loads, so the JIT compiles
+ * them to SIMD instructions where the processor has them; see
+ * <code>bench/QuaternionBenchmark</code> for the gain over <code>Quaternion.times</code>.
+ */
+public final class QuaternionArray {
+
+   final double[] a, b, c, d;
+   private final int size;
+
+   /** Array of zero quaternions.
+    * @param size number of quaternions
+    */
+   public QuaternionArray (int size) {
+      if (size < 0) {
+         throw new IllegalArgumentException("Negative size of quaternion array: " + size);
+      }
+      this.size = size;
+      a = new double[size];
+      b = new double[size];
+      c = new double[size];
+      d = new double[size];
+   }
+
+   /** Array holding the given quaternions.
+    * @param qs quaternions
+    * @return array of qs.length quaternions
+    */
+   public static QuaternionArray of (Quaternion... qs) {
+      QuaternionArray result = new QuaternionArray(qs.length);
+      for (int i = 0; i < qs.length; i++) {
+         result.set(i, qs[i]);
+      }
+      return result;
+   }
+
+   /** Number of quaternions.
+    * @return size
+    */
+   public int size() {
+      return size;
+   }
+
+   /** Quaternion at an index.
+    * @param i index
+    * @return new quaternion with the components at i
+    */
+   public Quaternion get (int i) {
+      return new Quaternion(a[i], b[i], c[i], d[i]);
+   }
+
+   /** Replaces the quaternion at an index.
+    * @param i index
+    * @param q new value
+    */
+   public void set (int i, Quaternion q) {
+      set(i, q.getRpart(), q.getIpart(), q.getJpart(), q.getKpart());
+   }
+
+   /** Replaces the quaternion at an index by the value of a mutable quaternion.
+    * @param i index
+    * @param q new value
+    */
+   public void set (int i, MutableQuaternion q) {
+      set(i, q.getRpart(), q.getIpart(), q.getJpart(), q.getKpart());
+   }
+
+   /** Replaces the quaternion at an index by a+bi+cj+dk.
+    * @param i index
+    * @param a real part
+    * @param b imaginary part i
+    * @param c imaginary part j
+    * @param d imaginary part k
+    */
+   public void set (int i, double a, double b, double c, double d) {
+      this.a[i] = a;
+      this.b[i] = b;
+      this.c[i] = c;
+      this.d[i] = d;
+   }
+
+   /** Elementwise sum, <code>dest[i] = this[i] + q[i]</code>.
+    * @param q addends
+    * @param dest destination
+    */
+   public void plus (QuaternionArray q, QuaternionArray dest) {
+      check(q);
+      check(dest);
+      for (int i = 0; i < size; i++) {
+         dest.a[i] = a[i] + q.a[i];
+         dest.b[i] = b[i] + q.b[i];
+         dest.c[i] = c[i] + q.c[i];
+         dest.d[i] = d[i] + q.d[i];
+      }
+   }
+
+   /** Elementwise difference, <code>dest[i] = this[i] - q[i]</code>.
+    * @param q subtrahends
+    * @param dest destination
+    */
+   public void minus (QuaternionArray q, QuaternionArray dest) {
+      check(q);
+      check(dest);
+      for (int i = 0; i < size; i++) {
+         dest.a[i] = a[i] - q.a[i];
+         dest.b[i] = b[i] - q.b[i];
+         dest.c[i] = c[i] - q.c[i];
+         dest.d[i] = d[i] - q.d[i];
+      }
+   }
+
+   /** Elementwise product, <code>dest[i] = this[i] * q[i]</code>, by the
+    * formula of <code>Quaternion.times</code>.
+    * @param q factors
+    * @param dest destination
+    */
+   public void times (QuaternionArray q, QuaternionArray dest) {
+      check(q);
+      check(dest);
+      double[] a1 = a, b1 = b, c1 = c, d1 = d;
+      double[] a2 = q.a, b2 = q.b, c2 = q.c, d2 = q.d;
+      double[] ra = dest.a, rb = dest.b, rc = dest.c, rd = dest.d;
+      for (int i = 0; i < size; i++) {
+         double pa = a1[i], pb = b1[i], pc = c1[i], pd = d1[i];
+         double qa = a2[i], qb = b2[i], qc = c2[i], qd = d2[i];
+         ra[i] = pa * qa - pb * qb - pc * qc - pd * qd;
+         rb[i] = pa * qb + pb * qa + pc * qd - pd * qc;
+         rc[i] = pa * qc - pb * qd + pc * qa + pd * qb;
+         rd[i] = pa * qd + pb * qc - pc * qb + pd * qa;
+      }
+   }
+
+   /** Multiplication by a coefficient, <code>dest[i] = this[i] * r</code>.
+    * @param r coefficient
+    * @param dest destination
+    */
+   public void times (double r, QuaternionArray dest) {
+      check(dest);
+      double[] a1 = a, b1 = b, c1 = c, d1 = d;
+      double[] ra = dest.a, rb = dest.b, rc = dest.c, rd = dest.d;
+      for (int i = 0; i < size; i++) {
+         ra[i] = a1[i] * r;
+         rb[i] = b1[i] * r;
+         rc[i] = c1[i] * r;
+         rd[i] = d1[i] * r;
+      }
+   }
+
+   /** Elementwise dot product, <code>dest[i] = a1a2+b1b2+c1c2+d1d2</code>,
+    * the real part of <code>this[i].dotMult(q[i])</code>.
+    * @param q second factors
+    * @param dest destination of at least <code>size()</code> elements
+    */
+   public void dot (QuaternionArray q, double[] dest) {
+      check(q);
+      checkLength(dest);
+      double[] a1 = a, b1 = b, c1 = c, d1 = d;
+      double[] a2 = q.a, b2 = q.b, c2 = q.c, d2 = q.d;
+      for (int i = 0; i < size; i++) {
+         dest[i] = a1[i] * a2[i] + b1[i] * b2[i] + c1[i] * c2[i] + d1[i] * d2[i];
+      }
+   }
+
+   /** Elementwise conjugate, <code>dest[i] = conjugate(this[i])</code>.
+    * @param dest destination
+    */
+   public void conjugate (QuaternionArray dest) {
+      check(dest);
+      for (int i = 0; i < size; i++) {
+         dest.a[i] = a[i];
+         dest.b[i] = -b[i];
+         dest.c[i] = -c[i];
+         dest.d[i] = -d[i];
+      }
+   }
+
+   /** Elementwise inverse, <code>dest[i] = 1/this[i]</code>.
+    * @param dest destination
+    * @throws ArithmeticException if some quaternion is (close to) zero;
+    *     the elements before it have been written
+    */
+   public void inverse (QuaternionArray dest) {
+      check(dest);
+      for (int i = 0; i < size; i++) {
+         double normSquared = a[i] * a[i] + b[i] * b[i] + c[i] * c[i] + d[i] * d[i];
+         if (normSquared < Quaternion.THRESHOLD) {
+            throw new ArithmeticException("Division by zero: norm is too small at index " + i);
+         }
+         dest.a[i] = a[i] / normSquared;
+         dest.b[i] = -b[i] / normSquared;
+         dest.c[i] = -c[i] / normSquared;
+         dest.d[i] = -d[i] / normSquared;
+      }
+   }
+
+   /** Norms of all quaternions, <code>dest[i] = norm(this[i])</code>.
+    * @param dest destination of at least <code>size()</code> elements
+    */
+   public void norm (double[] dest) {
+      checkLength(dest);
+      double[] a1 = a, b1 = b, c1 = c, d1 = d;
+      for (int i = 0; i < size; i++) {
+         dest[i] = Math.sqrt(a1[i] * a1[i] + b1[i] * b1[i] + c1[i] * c1[i] + d1[i] * d1[i]);
+      }
+   }
+
+   /** Elementwise unit quaternion, <code>dest[i] = this[i]/norm(this[i])</code>.
+    * @param dest destination
+    * @throws ArithmeticException if some quaternion is (close to) zero;
+    *     the elements before it have been written
+    */
+   public void normalize (QuaternionArray dest) {
+      check(dest);
+      for (int i = 0; i < size; i++) {
+         double norm = Math.sqrt(a[i] * a[i] + b[i] * b[i] + c[i] * c[i] + d[i] * d[i]);
+         if (norm < Quaternion.THRESHOLD) {
+            throw new ArithmeticException("Cannot normalize zero quaternion at index " + i);
+         }
+         double r = 1.0 / norm;
+         dest.a[i] = a[i] * r;
+         dest.b[i] = b[i] * r;
+         dest.c[i] = c[i] * r;
+         dest.d[i] = d[i] * r;
+      }
+   }
+
+   /** Equality test: same size and equal quaternions at every index.
+    * @param o second array
+    * @return true if equal in the sense of <code>Quaternion.equals</code>
+    */
+   @Override
+   public boolean equals (Object o) {
+      if (this == o) return true;
+      if (!(o instanceof QuaternionArray)) return false;
+      QuaternionArray that = (QuaternionArray) o;
+      if (size != that.size) return false;
+      for (int i = 0; i < size; i++) {
+         if (Math.abs(a[i] - that.a[i]) >= Quaternion.THRESHOLD
+               || Math.abs(b[i] - that.b[i]) >= Quaternion.THRESHOLD
+               || Math.abs(c[i] - that.c[i]) >= Quaternion.THRESHOLD
+               || Math.abs(d[i] - that.d[i]) >= Quaternion.THRESHOLD) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   /** Hash code of all components of the quaternions in the array. Like
+    * <code>Quaternion.hashCode</code> it is computed from the exact
+    * components.
+    * @return hashcode
+    */
+   @Override
+   public int hashCode() {
+      int h = size;
+      for (int i = 0; i < size; i++) {
+         h = 31 * h + Double.hashCode(a[i]);
+         h = 31 * h + Double.hashCode(b[i]);
+         h = 31 * h + Double.hashCode(c[i]);
+         h = 31 * h + Double.hashCode(d[i]);
+      }
+      return h;
+   }
+
+   /** Quaternions in <code>Quaternion.toString</code> form.
+    * @return "[q0, q1, ...]"
+    */
+   @Override
+   public String toString() {
+      String[] parts = new String[size];
+      for (int i = 0; i < size; i++) {
+         parts[i] = get(i).toString();
+      }
+      return Arrays.toString(parts);
+   }
+
+   private void checkLength (double[] dest) {
+      if (dest.length < size) {
+         throw new IllegalArgumentException("Destination holds " + dest.length + " values, need " + size);
+      }
+   }
+
+   private void check (QuaternionArray other) {
+      if (other.size != size) {
+         throw new IllegalArgumentException("Quaternion arrays differ in size: " + size + " and " + other.size);
+      }
+   }
+
+}
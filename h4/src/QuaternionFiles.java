@@ -0,0 +1,330 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/** Bulk reading and writing of quaternion files from and to a
+ * <code>QuaternionArray</code>.
+ * <p>Text files hold one quaternion per line in the form of
+ * <code>Quaternion.toString</code>; blank lines are skipped. For reading,
+ * the file is memory-mapped and cut into one chunk per thread at line
+ * boundaries. The threads first count the quaternions of their chunks,
+ * which gives every chunk its first index in the result, and then parse
+ * their chunks straight into the columns of the result. Writing uses
+ * <code>QuaternionFormatter</code>, so the text reads back exactly.
+ * <p>Binary files have a 16-byte header, the bytes <code>QUAT</code>, the
+ * format version 1 as an int and the number of quaternions as a long,
+ * followed by 32 bytes per quaternion: a, b, c and d as doubles. All
+ * numbers are little-endian. Both directions are one sequential pass over
+ * memory-mapped windows of the file.
+ */
+public final class QuaternionFiles {
+
+   /** Largest chunk, a mapping cannot exceed 2 GB. */
+   private static final long MAX_CHUNK = 1L << 30;
+   /** "QUAT" read as a little-endian int. */
+   private static final int MAGIC = 'Q' | 'U' << 8 | 'A' << 16 | 'T' << 24;
+   private static final int VERSION = 1;
+   private static final int HEADER = 16;
+   private static final int RECORD = 32;
+
+   private QuaternionFiles() {
+   }
+
+   /** Reads a text file of quaternions, one per line.
+    * @param path file
+    * @param threads number of threads to parse with
+    * @return quaternions in the order of the lines
+    * @throws IOException if the file cannot be read
+    * @throws IllegalArgumentException if a line is not a quaternion; the
+    *     message gives the line number
+    */
+   public static QuaternionArray readText (Path path, int threads) throws IOException {
+      if (threads < 1) {
+         throw new IllegalArgumentException("Number of threads must be positive, got " + threads);
+      }
+      try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+         long size = channel.size();
+         int chunks = (int) Math.max(threads, (size + MAX_CHUNK - 1) / MAX_CHUNK);
+         long[] bounds = new long[chunks + 1];
+         bounds[chunks] = size;
+         for (int k = 1; k < chunks; k++) {
+            bounds[k] = lineStart(channel, Math.max(bounds[k - 1], size / chunks * k), size);
+         }
+         ByteBuffer[] maps = new ByteBuffer[chunks];
+         for (int k = 0; k < chunks; k++) {
+            maps[k] = channel.map(FileChannel.MapMode.READ_ONLY, bounds[k], bounds[k + 1] - bounds[k]);
+         }
+
+         ExecutorService pool = Executors.newFixedThreadPool(threads);
+         try {
+            long[] counts = new long[2 * chunks];
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (int k = 0; k < chunks; k++) {
+               int chunk = k;
+               tasks.add(() -> {
+                  count(maps[chunk], counts, 2 * chunk);
+                  return null;
+               });
+            }
+            run(pool, tasks);
+            long total = 0;
+            long lines = 0;
+            long[] firstIndex = new long[chunks];
+            long[] firstLine = new long[chunks];
+            for (int k = 0; k < chunks; k++) {
+               firstIndex[k] = total;
+               firstLine[k] = lines;
+               total += counts[2 * k];
+               lines += counts[2 * k + 1];
+            }
+            if (total > Integer.MAX_VALUE) {
+               throw new IllegalArgumentException(path + " holds " + total + " quaternions, more than an array takes");
+            }
+            QuaternionArray result = new QuaternionArray((int) total);
+            tasks.clear();
+            for (int k = 0; k < chunks; k++) {
+               int chunk = k;
+               tasks.add(() -> {
+                  parse(maps[chunk], result, (int) firstIndex[chunk], firstLine[chunk], path);
+                  return null;
+               });
+            }
+            run(pool, tasks);
+            return result;
+         } finally {
+            pool.shutdown();
+         }
+      }
+   }
+
+   /** Writes a text file of quaternions, one per line, replacing the file if it exists.
+    * @param path file
+    * @param quaternions quaternions to write
+    * @throws IOException if the file cannot be written
+    */
+   public static void writeText (Path path, QuaternionArray quaternions) throws IOException {
+      QuaternionFormatter formatter = new QuaternionFormatter();
+      ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+      try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+         for (int i = 0; i < quaternions.size(); i++) {
+            if (buffer.remaining() <= QuaternionFormatter.MAX_LENGTH) {
+               drain(channel, buffer);
+            }
+            formatter.format(quaternions.a[i], quaternions.b[i], quaternions.c[i], quaternions.d[i], buffer);
+            buffer.put((byte) '\n');
+         }
+         drain(channel, buffer);
+      }
+   }
+
+   /** Writes a binary file of quaternions, replacing the file if it exists.
+    * @param path file
+    * @param quaternions quaternions to write
+    * @throws IOException if the file cannot be written
+    */
+   public static void writeBinary (Path path, QuaternionArray quaternions) throws IOException {
+      int n = quaternions.size();
+      try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+         ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+         header.putInt(MAGIC).putInt(VERSION).putLong(n).flip();
+         while (header.hasRemaining()) {
+            channel.write(header, header.position());
+         }
+         int window = (int) (MAX_CHUNK / RECORD);
+         for (int first = 0; first < n; first += window) {
+            int count = Math.min(window, n - first);
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, HEADER + (long) first * RECORD,
+               (long) count * RECORD);
+            map.order(ByteOrder.LITTLE_ENDIAN);
+            for (int i = 0, at = 0; i < count; i++, at += RECORD) {
+               map.putDouble(at, quaternions.a[first + i]);
+               map.putDouble(at + 8, quaternions.b[first + i]);
+               map.putDouble(at + 16, quaternions.c[first + i]);
+               map.putDouble(at + 24, quaternions.d[first + i]);
+            }
+            map.force();
+         }
+      }
+   }
+
+   /** Reads a binary file of quaternions.
+    * @param path file
+    * @return quaternions in the order of the file
+    * @throws IOException if the file cannot be read or is not a quaternion
+    *     file of the supported version
+    */
+   public static QuaternionArray readBinary (Path path) throws IOException {
+      try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+         long size = channel.size();
+         ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+         while (header.hasRemaining() && channel.read(header, header.position()) >= 0) {
+            // read until the header is complete or the file ends
+         }
+         if (header.hasRemaining() || header.getInt(0) != MAGIC) {
+            throw new IOException(path + " is not a binary quaternion file");
+         }
+         if (header.getInt(4) != VERSION) {
+            throw new IOException(path + " has format version " + header.getInt(4) + ", supported is " + VERSION);
+         }
+         long n = header.getLong(8);
+         if (n < 0 || n > Integer.MAX_VALUE || size != HEADER + n * RECORD) {
+            throw new IOException(path + " has " + size + " bytes, which does not fit its header count of "
+               + n + " quaternions");
+         }
+         QuaternionArray result = new QuaternionArray((int) n);
+         int window = (int) (MAX_CHUNK / RECORD);
+         for (int first = 0; first < n; first += window) {
+            int count = (int) Math.min(window, n - first);
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, HEADER + (long) first * RECORD,
+               (long) count * RECORD);
+            map.order(ByteOrder.LITTLE_ENDIAN);
+            for (int i = 0, at = 0; i < count; i++, at += RECORD) {
+               result.set(first + i, map.getDouble(at), map.getDouble(at + 8), map.getDouble(at + 16),
+                  map.getDouble(at + 24));
+            }
+         }
+         return result;
+      }
+   }
+
+   private static void drain (FileChannel channel, ByteBuffer buffer) throws IOException {
+      buffer.flip();
+      while (buffer.hasRemaining()) {
+         channel.write(buffer);
+      }
+      buffer.clear();
+   }
+
+   /** Position after the first line feed at or after pos - 1, i.e. pos
+    * itself if a line starts there.
+    */
+   private static long lineStart (FileChannel channel, long pos, long size) throws IOException {
+      if (pos == 0) {
+         return 0;
+      }
+      ByteBuffer buffer = ByteBuffer.allocate(256);
+      for (long at = pos - 1; at < size; at += buffer.limit()) {
+         buffer.clear();
+         if (channel.read(buffer, at) < 0) {
+            break;
+         }
+         buffer.flip();
+         for (int i = 0; i < buffer.limit(); i++) {
+            if (buffer.get(i) == '\n') {
+               return at + i + 1;
+            }
+         }
+      }
+      return size;
+   }
+
+   /** Counts the non-blank lines and all lines of a chunk into counts[slot] and counts[slot + 1]. */
+   private static void count (ByteBuffer chunk, long[] counts, int slot) {
+      long quaternions = 0;
+      long lines = 0;
+      boolean blank = true;
+      for (int i = 0, n = chunk.limit(); i < n; i++) {
+         byte b = chunk.get(i);
+         if (b == '\n') {
+            quaternions += blank ? 0 : 1;
+            lines++;
+            blank = true;
+         } else if (b > ' ') {
+            blank = false;
+         }
+      }
+      if (!blank) {
+         quaternions++;
+         lines++;
+      }
+      counts[slot] = quaternions;
+      counts[slot + 1] = lines;
+   }
+
+   private static void parse (ByteBuffer chunk, QuaternionArray dest, int index, long line, Path path) {
+      QuaternionParser parser = new QuaternionParser();
+      Ascii text = new Ascii(chunk);
+      int n = chunk.limit();
+      int start = 0;
+      while (start < n) {
+         int end = start;
+         boolean blank = true;
+         for (; end < n && chunk.get(end) != '\n'; end++) {
+            blank &= chunk.get(end) <= ' ';
+         }
+         line++;
+         if (!blank) {
+            try {
+               parser.parse(text, start, end);
+            } catch (IllegalArgumentException e) {
+               throw new IllegalArgumentException(e.getMessage() + " (line " + line + " of " + path + ")", e);
+            }
+            dest.set(index++, parser.a, parser.b, parser.c, parser.d);
+         }
+         start = end + 1;
+      }
+   }
+
+   private static void run (ExecutorService pool, List<Callable<Void>> tasks) throws IOException {
+      try {
+         for (Future<Void> result : pool.invokeAll(tasks)) {
+            result.get();
+         }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new IOException("Interrupted while reading quaternions", e);
+      } catch (ExecutionException e) {
+         if (e.getCause() instanceof RuntimeException) {
+            throw (RuntimeException) e.getCause();
+         }
+         throw new IOException(e.getCause());
+      }
+   }
+
+   /** Read-only characters of a buffer of single-byte text. */
+   private static final class Ascii implements CharSequence {
+      private final ByteBuffer bytes;
+
+      Ascii (ByteBuffer bytes) {
+         this.bytes = bytes;
+      }
+
+      @Override
+      public int length() {
+         return bytes.limit();
+      }
+
+      @Override
+      public char charAt (int i) {
+         return (char) (bytes.get(i) & 0xff);
+      }
+
+      @Override
+      public CharSequence subSequence (int start, int end) {
+         StringBuilder result = new StringBuilder(end - start);
+         for (int i = start; i < end; i++) {
+            result.append(charAt(i));
+         }
+         return result;
+      }
+
+      @Override
+      public String toString() {
+         return subSequence(0, length()).toString();
+      }
+   }
+
+}
@@ -0,0 +1,279 @@
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/** Fast conversion of quaternions to text of the form "a+bi+cj+dk" that
+ * <code>Quaternion.valueOf</code> reads back exactly. Every component is
+ * written with the fewest decimal digits that identify the double, in the
+ * style of <code>Double.toString</code> ("0.001", "123.45", "1.0E7",
+ * "-2.5E-4", "NaN", "Infinity"); of several shortest candidates the one
+ * closest to the double is taken.
+ * <p>The digits are computed with integer arithmetic only, and a
+ * formatter writes through its own small buffer, so formatting does not
+ * allocate. A formatter is not thread-safe.
+ * Source: R. Giulietti, "The Schubfach way to render doubles", 2020.
+ */
+public final class QuaternionFormatter {
+
+   private static final int Q_MIN = -1074;
+   private static final long C_MIN = 1L << 52;
+   private static final long C_TINY = 3;
+   private static final int K_MIN = -324;
+   private static final long MASK_63 = (1L << 63) - 1;
+
+   /** Upper and lower 63 bits of floor(10^-k 2^(125 - flog2pow10(-k))) + 1, by k - K_MIN. */
+   private static final long[] G1 = new long[617];
+   private static final long[] G0 = new long[617];
+
+   static {
+      for (int i = 0; i < G1.length; i++) {
+         int k = K_MIN + i;
+         int shift = 125 - flog2pow10(-k);
+         BigInteger g;
+         if (k <= 0) {
+            g = BigInteger.TEN.pow(-k);
+            g = shift >= 0 ? g.shiftLeft(shift) : g.shiftRight(-shift);
+         } else {
+            g = BigInteger.ONE.shiftLeft(shift).divide(BigInteger.TEN.pow(k));
+         }
+         g = g.add(BigInteger.ONE);
+         G1[i] = g.shiftRight(63).longValue();
+         G0[i] = g.longValue() & MASK_63;
+      }
+   }
+
+   /** Longest text of one quaternion. */
+   public static final int MAX_LENGTH = 4 * 25 + 3;
+
+   private final char[] chars = new char[128];
+   private int length;
+
+   /** Appends a quaternion.
+    * @param q quaternion
+    * @param out destination
+    * @throws IOException if the destination fails
+    */
+   public void format (Quaternion q, Appendable out) throws IOException {
+      format(q.getRpart(), q.getIpart(), q.getJpart(), q.getKpart(), out);
+   }
+
+   /** Appends the quaternion a+bi+cj+dk.
+    * @param a real part
+    * @param b imaginary part i
+    * @param c imaginary part j
+    * @param d imaginary part k
+    * @param out destination
+    * @throws IOException if the destination fails
+    */
+   public void format (double a, double b, double c, double d, Appendable out) throws IOException {
+      render(a, b, c, d);
+      if (out instanceof StringBuilder) {
+         ((StringBuilder) out).append(chars, 0, length);
+      } else {
+         for (int i = 0; i < length; i++) {
+            out.append(chars[i]);
+         }
+      }
+   }
+
+   /** Puts the quaternion a+bi+cj+dk as ASCII bytes at the position of a buffer.
+    * @param a real part
+    * @param b imaginary part i
+    * @param c imaginary part j
+    * @param d imaginary part k
+    * @param out destination
+    * @throws BufferOverflowException if the text does not fit; nothing is written then
+    */
+   public void format (double a, double b, double c, double d, ByteBuffer out) {
+      render(a, b, c, d);
+      if (out.remaining() < length) {
+         throw new BufferOverflowException();
+      }
+      int pos = out.position();
+      for (int i = 0; i < length; i++) {
+         out.put(pos + i, (byte) chars[i]);
+      }
+      out.position(pos + length);
+   }
+
+   private void render (double a, double b, double c, double d) {
+      length = 0;
+      component(a, false);
+      component(b, true);
+      chars[length++] = 'i';
+      component(c, true);
+      chars[length++] = 'j';
+      component(d, true);
+      chars[length++] = 'k';
+   }
+
+   /** Writes one double, with a leading + if requested and the double is not negative. */
+   private void component (double v, boolean plus) {
+      long bits = Double.doubleToRawLongBits(v);
+      if (bits < 0) {
+         chars[length++] = '-';
+      } else if (plus) {
+         chars[length++] = '+';
+      }
+      long t = bits & (C_MIN - 1);
+      int bq = (int) (bits >>> 52) & 0x7ff;
+      if (bq == 0x7ff) {
+         append(t != 0 ? "NaN" : "Infinity");
+         return;
+      }
+      if (bq != 0) {
+         int mq = -Q_MIN + 1 - bq;
+         long c = C_MIN | t;
+         if (0 < mq && mq < 53) {
+            long f = c >> mq;
+            if (f << mq == c) {
+               digits(f, 0);        // integer below 2^53
+               return;
+            }
+         }
+         toDecimal(-mq, c, 0);
+      } else if (t != 0) {
+         if (t < C_TINY) {
+            toDecimal(Q_MIN, 10 * t, -1);
+         } else {
+            toDecimal(Q_MIN, t, 0);
+         }
+      } else {
+         append("0.0");
+      }
+   }
+
+   /** Shortest decimal in the rounding interval of c 2^q, written via digits(f, e). */
+   private void toDecimal (int q, long c, int dk) {
+      int out = (int) c & 1;
+      long cb = c << 2;
+      long cbr = cb + 2;
+      long cbl;
+      int k;
+      if (c != C_MIN || q == Q_MIN) {
+         cbl = cb - 2;
+         k = flog10pow2(q);
+      } else {
+         cbl = cb - 1;
+         k = flog10threeQuartersPow2(q);
+      }
+      int h = q + flog2pow10(-k) + 2;
+      long g1 = G1[k - K_MIN];
+      long g0 = G0[k - K_MIN];
+      long vb = rop(g1, g0, cb << h);
+      long vbl = rop(g1, g0, cbl << h);
+      long vbr = rop(g1, g0, cbr << h);
+      long s = vb >> 2;
+      if (s >= 100) {
+         long sp10 = 10 * Math.multiplyHigh(s, 115_292_150_460_684_698L << 4);
+         long tp10 = sp10 + 10;
+         boolean upin = vbl + out <= sp10 << 2;
+         boolean wpin = (tp10 << 2) + out <= vbr;
+         if (upin != wpin) {
+            digits(upin ? sp10 : tp10, k);
+            return;
+         }
+      }
+      long t = s + 1;
+      boolean uin = vbl + out <= s << 2;
+      boolean win = (t << 2) + out <= vbr;
+      if (uin != win) {
+         digits(uin ? s : t, k + dk);
+         return;
+      }
+      long cmp = vb - (s + t << 1);
+      digits(cmp < 0 || cmp == 0 && (s & 1) == 0 ? s : t, k + dk);
+   }
+
+   /** Rounded-to-odd product of g and cp, scaled down by 2^127. */
+   private static long rop (long g1, long g0, long cp) {
+      long x1 = Math.multiplyHigh(g0, cp);
+      long y0 = g1 * cp;
+      long y1 = Math.multiplyHigh(g1, cp);
+      long z = (y0 >>> 1) + x1;
+      long vbp = y1 + (z >>> 63);
+      return vbp | (z & MASK_63) + MASK_63 >>> 63;
+   }
+
+   /** Writes f 10^e, f positive, plainly if 10^-3 &lt;= value &lt; 10^7, otherwise as d.dddEn. */
+   private void digits (long f, int e) {
+      while (f % 10 == 0) {
+         f /= 10;
+         e++;
+      }
+      int start = length;
+      int n = 0;
+      for (long x = f; x != 0; x /= 10) {
+         n++;
+      }
+      for (int i = start + n - 1; i >= start; i--) {
+         chars[i] = (char) ('0' + f % 10);
+         f /= 10;
+      }
+      int exponent = e + n - 1;          // of the leading digit
+      if (exponent >= 0 && exponent < 7) {
+         if (n <= exponent + 1) {
+            for (int i = n; i <= exponent; i++) {
+               chars[start + i] = '0';
+            }
+            length = start + exponent + 1;
+            append(".0");
+         } else {
+            System.arraycopy(chars, start + exponent + 1, chars, start + exponent + 2, n - exponent - 1);
+            chars[start + exponent + 1] = '.';
+            length = start + n + 1;
+         }
+      } else if (exponent < 0 && exponent >= -3) {
+         int zeros = -exponent - 1;
+         System.arraycopy(chars, start, chars, start + 2 + zeros, n);
+         chars[start] = '0';
+         chars[start + 1] = '.';
+         for (int i = 0; i < zeros; i++) {
+            chars[start + 2 + i] = '0';
+         }
+         length = start + 2 + zeros + n;
+      } else {
+         System.arraycopy(chars, start + 1, chars, start + 2, n - 1);
+         chars[start + 1] = '.';
+         length = start + n + 1;
+         if (n == 1) {
+            chars[length++] = '0';
+         }
+         chars[length++] = 'E';
+         if (exponent < 0) {
+            chars[length++] = '-';
+            exponent = -exponent;
+         }
+         if (exponent >= 100) {
+            chars[length++] = (char) ('0' + exponent / 100);
+         }
+         if (exponent >= 10) {
+            chars[length++] = (char) ('0' + exponent / 10 % 10);
+         }
+         chars[length++] = (char) ('0' + exponent % 10);
+      }
+   }
+
+   private void append (String s) {
+      for (int i = 0; i < s.length(); i++) {
+         chars[length++] = s.charAt(i);
+      }
+   }
+
+   /** floor(q log10(2)) */
+   private static int flog10pow2 (int q) {
+      return (int) (q * 661_971_961_083L >> 41);
+   }
+
+   /** floor(log10(3/4 2^q)) */
+   private static int flog10threeQuartersPow2 (int q) {
+      return (int) (q * 661_971_961_083L + -274_743_187_321L >> 41);
+   }
+
+   /** floor(e log2(10)) */
+   private static int flog2pow10 (int e) {
+      return (int) (e * 913_124_641_741L >> 38);
+   }
+
+}
@@ -0,0 +1,183 @@
+/** Single-pass parser of the <code>Quaternion.toString</code> form
+ * "a+bi+cj+dk": a sequence of signed real numbers, each optionally
+ * followed by <code>i</code>, <code>j</code> or <code>k</code>. Each part
+ * may occur at most once and may be missing, so "-1-2i-3j-4k", "5j" and
+ * "-2.0e-3-4.0e-1i-5.0e-2j-6.0e-3k" are accepted. Numbers may have a
+ * fraction and an exponent, or be <code>NaN</code> or <code>Infinity</code>.
+ * <p>The parser reads characters in place and keeps the result in its
+ * fields, so one instance parses any number of quaternions without
+ * allocating. Numbers of at most 15 significant digits with a decimal
+ * exponent of at most 22 are converted with one exact multiplication or
+ * division, which is correctly rounded; longer numbers are handed to
+ * <code>Double.parseDouble</code>.
+ * Source: W. D. Clinger, "How to read floating point numbers accurately", 1990.
+ */
+final class QuaternionParser {
+
+   private static final double[] POWERS_OF_TEN = {
+      1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+      1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+   private static final int REAL = 1, I = 2, J = 4, K = 8;
+
+   /** Components of the last parsed quaternion. */
+   double a, b, c, d;
+
+   private CharSequence s;
+   private int start;
+   private int pos;
+   private int end;
+
+   /** Parses s[start, end) into the fields a, b, c and d. Whitespace
+    * around the quaternion is ignored.
+    * @param s text
+    * @param start first character
+    * @param end position after the last character
+    * @throws IllegalArgumentException if the text is not a quaternion
+    */
+   void parse (CharSequence s, int start, int end) {
+      while (start < end && s.charAt(start) <= ' ') {
+         start++;
+      }
+      while (end > start && s.charAt(end - 1) <= ' ') {
+         end--;
+      }
+      this.s = s;
+      this.start = start;
+      this.pos = start;
+      this.end = end;
+      a = 0;
+      b = 0;
+      c = 0;
+      d = 0;
+      int seen = 0;
+      if (start == end) {
+         throw error("Empty quaternion string", start);
+      }
+      while (pos < end) {
+         int termStart = pos;
+         if (seen != 0 && s.charAt(pos) != '+' && s.charAt(pos) != '-') {
+            throw error("Expected + or - before the next part", pos);
+         }
+         double value = number();
+         int part = REAL;
+         if (pos < end) {
+            switch (s.charAt(pos)) {
+               case 'i': part = I; pos++; break;
+               case 'j': part = J; pos++; break;
+               case 'k': part = K; pos++; break;
+               default:
+            }
+         }
+         if ((seen & part) != 0) {
+            throw error("Repeated " + (part == REAL ? "real" : "imaginary") + " part", termStart);
+         }
+         seen |= part;
+         switch (part) {
+            case REAL: a = value; break;
+            case I: b = value; break;
+            case J: c = value; break;
+            default: d = value;
+         }
+      }
+      this.s = null;
+   }
+
+   /** Reads a signed number at pos and advances pos past it. */
+   private double number() {
+      int numberStart = pos;
+      boolean negative = false;
+      if (pos < end && (s.charAt(pos) == '+' || s.charAt(pos) == '-')) {
+         negative = s.charAt(pos) == '-';
+         pos++;
+      }
+      if (pos < end && (s.charAt(pos) == 'N' || s.charAt(pos) == 'I')) {
+         if (word("NaN")) {
+            return Double.NaN;
+         }
+         if (word("Infinity")) {
+            return negative ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+         }
+         throw error("Invalid number", numberStart);
+      }
+      long mantissa = 0;
+      int digits = 0;            // significant digits in mantissa
+      int exponent = 0;          // decimal exponent of mantissa
+      boolean any = false;
+      boolean exact = true;
+      for (; pos < end && isDigit(s.charAt(pos)); pos++) {
+         any = true;
+         if (digits < 18) {
+            mantissa = mantissa * 10 + (s.charAt(pos) - '0');
+            digits += mantissa == 0 ? 0 : 1;
+         } else {
+            exponent++;
+            exact = false;
+         }
+      }
+      if (pos < end && s.charAt(pos) == '.') {
+         pos++;
+         for (; pos < end && isDigit(s.charAt(pos)); pos++) {
+            any = true;
+            if (digits < 18) {
+               mantissa = mantissa * 10 + (s.charAt(pos) - '0');
+               digits += mantissa == 0 ? 0 : 1;
+               exponent--;
+            } else {
+               exact = false;
+            }
+         }
+      }
+      if (!any) {
+         throw error("Missing number", numberStart);
+      }
+      if (pos < end && (s.charAt(pos) == 'e' || s.charAt(pos) == 'E')) {
+         int exponentStart = pos++;
+         boolean negativeExponent = false;
+         if (pos < end && (s.charAt(pos) == '+' || s.charAt(pos) == '-')) {
+            negativeExponent = s.charAt(pos) == '-';
+            pos++;
+         }
+         if (pos == end || !isDigit(s.charAt(pos))) {
+            throw error("Missing exponent digits", exponentStart);
+         }
+         int e = 0;
+         for (; pos < end && isDigit(s.charAt(pos)); pos++) {
+            e = Math.min(e * 10 + (s.charAt(pos) - '0'), 100000);
+         }
+         exponent += negativeExponent ? -e : e;
+      }
+      double value;
+      if (exact && digits <= 15 && Math.abs(exponent) <= 22) {
+         value = exponent >= 0 ? mantissa * POWERS_OF_TEN[exponent] : mantissa / POWERS_OF_TEN[-exponent];
+         return negative ? -value : value;
+      } else if (mantissa == 0) {
+         return negative ? -0.0 : 0.0;
+      }
+      return Double.parseDouble(s.subSequence(numberStart, pos).toString());
+   }
+
+   private boolean word (String w) {
+      if (end - pos < w.length()) {
+         return false;
+      }
+      for (int i = 0; i < w.length(); i++) {
+         if (s.charAt(pos + i) != w.charAt(i)) {
+            return false;
+         }
+      }
+      pos += w.length();
+      return true;
+   }
+
+   private IllegalArgumentException error (String message, int at) {
+      String text = s.subSequence(start, end).toString();
+      s = null;
+      return new IllegalArgumentException(message + " at position " + (at - start) + " in quaternion string: "
+         + text);
+   }
+
+   private static boolean isDigit (char ch) {
+      return ch >= '0' && ch <= '9';
+   }
+
+}
@@ -646,5 +646,333 @@ public class QuaternionTest {
       q.pow(-1);
    }
 
-}
+   @Test (timeout=1000)
+   public void testArrayBatch() {
+      Quaternion[] xs = { new Quaternion (1., 2., 3., 4.), new Quaternion (-5., 0.5, 7., -13.),
+         new Quaternion (0., 0., -1., 350.) };
+      Quaternion[] ys = { new Quaternion (0.5, -1., 1.5, -2.), new Quaternion (3., 7., -5., -2.),
+         new Quaternion (2., 0., 0., 0.) };
+      QuaternionArray x = QuaternionArray.of (xs);
+      QuaternionArray y = QuaternionArray.of (ys);
+      QuaternionArray r = new QuaternionArray (3);
+      double[] norms = new double[3];
+      x.plus (y, r);
+      for (int i = 0; i < 3; i++)
+         assertEquals ("plus at " + i, xs[i].plus (ys[i]), r.get (i));
+      x.minus (y, r);
+      for (int i = 0; i < 3; i++)
+         assertEquals ("minus at " + i, xs[i].minus (ys[i]), r.get (i));
+      x.times (y, r);
+      for (int i = 0; i < 3; i++)
+         assertEquals ("times at " + i, xs[i].times (ys[i]), r.get (i));
+      x.conjugate (r);
+      for (int i = 0; i < 3; i++)
+         assertEquals ("conjugate at " + i, xs[i].conjugate(), r.get (i));
+      x.inverse (r);
+      for (int i = 0; i < 3; i++)
+         assertEquals ("inverse at " + i, xs[i].inverse(), r.get (i));
+      x.norm (norms);
+      for (int i = 0; i < 3; i++)
+         assertEquals ("norm at " + i, xs[i].norm(), norms[i], DELTA);
+      x.normalize (r);
+      for (int i = 0; i < 3; i++)
+         assertEquals ("normalize at " + i, xs[i].times (1. / xs[i].norm()), r.get (i));
+      x.times (y, x);
+      assertEquals ("destination may be an operand", QuaternionArray.of (xs[0].times (ys[0]),
+         xs[1].times (ys[1]), xs[2].times (ys[2])), x);
+      assertEquals ("operands must be unchanged", ys[1], y.get (1));
+   }
+
+   @Test (timeout=1000)
+   public void testArrayErrors() {
+      QuaternionArray x = QuaternionArray.of (new Quaternion (1., 0., 0., 0.),
+         new Quaternion (0., 0., 0., 0.));
+      try {
+         x.inverse (new QuaternionArray (2));
+         fail ("inverse of zero must throw");
+      } catch (ArithmeticException e) {
+         assertTrue (e.getMessage(), e.getMessage().contains ("index 1"));
+      }
+      try {
+         x.normalize (new QuaternionArray (2));
+         fail ("normalize of zero must throw");
+      } catch (ArithmeticException e) {
+         // expected
+      }
+      try {
+         x.plus (new QuaternionArray (3), new QuaternionArray (2));
+         fail ("sizes must agree");
+      } catch (IllegalArgumentException e) {
+         // expected
+      }
+   }
+
+   @Test (timeout=1000)
+   public void testArrayScaleDot() {
+      Quaternion p = new Quaternion (1., 2., 3., 4.);
+      Quaternion q = new Quaternion (-5., 0.5, 7., -13.);
+      QuaternionArray x = QuaternionArray.of (p, q);
+      QuaternionArray r = new QuaternionArray (2);
+      x.times (-2.5, r);
+      assertEquals ("scale", QuaternionArray.of (p.times (-2.5), q.times (-2.5)), r);
+      double[] dots = new double[2];
+      x.dot (QuaternionArray.of (q, q), dots);
+      assertEquals ("dot", p.dotMult (q).getRpart(), dots[0], DELTA);
+      assertEquals ("dot with itself", q.norm() * q.norm(), dots[1], DELTA);
+   }
+
+   @Test (timeout=1000)
+   public void testArrayHashCode() {
+      Quaternion p = new Quaternion (1., 2., 3., 4.);
+      Quaternion q = new Quaternion (-5., 0.5, 7., -13.);
+      QuaternionArray x = QuaternionArray.of (p, q);
+      assertEquals ("hashCode has to be same for equal objects", x.hashCode(),
+         QuaternionArray.of (p, q).hashCode());
+      assertFalse ("hashCode must depend on the order", x.hashCode() == QuaternionArray.of (q, p).hashCode());
+      Quaternion[] changed = { new Quaternion (1.5, 2., 3., 4.), new Quaternion (1., 2.5, 3., 4.),
+         new Quaternion (1., 2., 3.5, 4.), new Quaternion (1., 2., 3., 4.5) };
+      for (Quaternion r : changed) {
+         assertFalse ("hashCode must depend on every component: " + r,
+            x.hashCode() == QuaternionArray.of (r, q).hashCode());
+      }
+      assertFalse ("hashCode must not be the size only",
+         new QuaternionArray (2).hashCode() == x.hashCode());
+   }
+
+   @Test (timeout=1000)
+   public void testMutable() {
+      Quaternion p = new Quaternion (1., 2., 3., 4.);
+      Quaternion q = new Quaternion (0.5, -1., 1.5, -2.);
+      MutableQuaternion m = new MutableQuaternion (p);
+      assertEquals ("conversion", p, m.toQuaternion());
+      assertSame ("chaining", m, m.timesInPlace (q));
+      assertEquals ("timesInPlace", p.times (q), m.toQuaternion());
+      m.set (p).plusInPlace (q);
+      assertEquals ("plusInPlace", p.plus (q), m.toQuaternion());
+      m.set (p).conjugateInPlace();
+      assertEquals ("conjugateInPlace", p.conjugate(), m.toQuaternion());
+      m.set (p).timesInPlace (m);
+      assertEquals ("square in place", p.times (p), m.toQuaternion());
+      m.set (p).normalizeInPlace();
+      assertEquals ("normalizeInPlace", p.times (1. / p.norm()), m.toQuaternion());
+      assertEquals ("unit norm", 1., m.norm(), DELTA);
+      MutableQuaternion acc = new MutableQuaternion (1., 0., 0., 0.);
+      Quaternion expected = new Quaternion (1., 0., 0., 0.);
+      for (int i = 0; i < 10; i++) {
+         acc.timesInPlace (q);
+         expected = expected.times (q);
+      }
+      assertEquals ("accumulated product", expected, acc.toQuaternion());
+      QuaternionArray array = new QuaternionArray (1);
+      array.set (0, acc);
+      assertEquals ("array round trip", expected, new MutableQuaternion().set (array, 0).toQuaternion());
+      assertEquals ("toString", p.toString(), new MutableQuaternion (p).toString());
+   }
+
+   @Test (expected=ArithmeticException.class)
+   public void testMutableNormalizeZero() {
+      new MutableQuaternion().normalizeInPlace();
+   }
 
+   @Test (timeout=1000)
+   public void testPowLarge() {
+      Quaternion q = new Quaternion (1., 2., 3., 4.);
+      Quaternion expected = new Quaternion (1., 0., 0., 0.);
+      for (int n = 0; n <= 13; n++) {
+         assertEquals ("pow(" + n + ")", expected, q.pow (n));
+         expected = expected.times (q);
+      }
+      Quaternion unit = new Quaternion (Math.cos (0.001), Math.sin (0.001), 0., 0.);
+      assertEquals ("pow(100000) of a rotation", new Quaternion (Math.cos (100.), Math.sin (100.), 0., 0.),
+         unit.pow (100000));
+      assertEquals ("pow(-100000) of a rotation", new Quaternion (Math.cos (100.), -Math.sin (100.), 0., 0.),
+         unit.pow (-100000));
+      assertEquals ("pow(MIN_VALUE) of one", new Quaternion (1., 0., 0., 0.),
+         new Quaternion (1., 0., 0., 0.).pow (Integer.MIN_VALUE));
+   }
+
+   @Test (timeout=1000)
+   public void testPowReal() {
+      Quaternion q = new Quaternion (1., 2., 3., 4.);
+      assertEquals ("pow(2.)", q.pow (2), q.pow (2.));
+      assertEquals ("pow(-3.)", q.pow (-3), q.pow (-3.));
+      assertEquals ("pow(0.)", new Quaternion (1., 0., 0., 0.), q.pow (0.));
+      Quaternion root = q.pow (0.5);
+      assertEquals ("square of pow(0.5)", q, root.times (root));
+      assertEquals ("pow(0.25) and pow(0.75)", q, q.pow (0.25).times (q.pow (0.75)));
+      assertEquals ("square root of -4", new Quaternion (0., 2., 0., 0.),
+         new Quaternion (-4., 0., 0., 0.).pow (0.5));
+      assertEquals ("square root of 9", new Quaternion (3., 0., 0., 0.),
+         new Quaternion (9., 0., 0., 0.).pow (0.5));
+      assertTrue ("positive power of zero", new Quaternion (0., 0., 0., 0.).pow (1.5).isZero());
+      Quaternion small = new Quaternion (1e-7, 2e-7, -3e-8, 4e-9);
+      Quaternion same = small.pow (1.);
+      assertArrayEquals ("pow(1.) of a small quaternion", new double[] {1e-7, 2e-7, -3e-8, 4e-9},
+         new double[] {same.getRpart(), same.getIpart(), same.getJpart(), same.getKpart()}, 0.);
+      assertEquals ("pow(0.) of a small quaternion", new Quaternion (1., 0., 0., 0.), small.pow (0.));
+      Quaternion square = small.pow (2.);
+      Quaternion expected = small.pow (2);
+      assertArrayEquals ("pow(2.) of a small quaternion",
+         new double[] {expected.getRpart(), expected.getIpart(), expected.getJpart(), expected.getKpart()},
+         new double[] {square.getRpart(), square.getIpart(), square.getJpart(), square.getKpart()}, 1e-24);
+      Quaternion smallRoot = new Quaternion (1e-8, 0., 0., 0.).pow (0.5);
+      assertEquals ("square root of a small real number", 1e-4, smallRoot.getRpart(), 1e-16);
+      Quaternion tilted = new Quaternion (1e-7, 1e-12, 0., 0.).pow (0.5);
+      assertTrue ("imaginary part relative to the norm is kept", tilted.getIpart() > 0.);
+      try {
+         new Quaternion (0., 0., 0., 0.).pow (-0.5);
+         fail ("negative power of zero must throw");
+      } catch (ArithmeticException e) {
+         assertTrue ("message must name the exponent: " + e.getMessage(), e.getMessage().contains ("-0.5"));
+      }
+      Quaternion near = small.pow (1. + 1e-9);
+      assertEquals ("exponent within the threshold of 1", 1e-7, near.getRpart(), 0.);
+   }
+
+   @Test (timeout=1000)
+   public void testValueOfForms() {
+      assertEquals ("exponents", new Quaternion (-2.0e-3, -4.0e-1, -5.0e-2, -6.0e-3),
+         Quaternion.valueOf ("-2.0e-3-4.0e-1i-5.0e-2j-6.0e-3k"));
+      assertEquals ("integers", new Quaternion (-1., -2., -3., -4.), Quaternion.valueOf ("-1-2i-3j-4k"));
+      assertEquals ("missing parts", new Quaternion (0., 0., 5., 0.), Quaternion.valueOf ("5j"));
+      assertEquals ("any order", new Quaternion (1., 2., 3., 4.), Quaternion.valueOf ("4k+3j+2i+1"));
+      assertEquals ("surrounding space", new Quaternion (1., 2., 3., 4.),
+         Quaternion.valueOf (" 1+2i+3j+4k\r\n"));
+      java.util.Random random = new java.util.Random (1);
+      for (int i = 0; i < 1000; i++) {
+         double x = Double.longBitsToDouble (random.nextLong());
+         if (Double.isNaN (x)) continue;
+         double y = random.nextGaussian() * Math.pow (10., random.nextInt (40) - 20);
+         Quaternion q = Quaternion.valueOf (x + (y < 0 ? "" : "+") + y + "i" + "-" + Math.abs (y) + "j" + "+0k");
+         assertEquals ("exact real part of " + x, x, q.getRpart(), 0.);
+         assertEquals ("exact i part of " + y, y, q.getIpart(), 0.);
+         assertEquals ("exact j part of " + y, -Math.abs (y), q.getJpart(), 0.);
+      }
+      assertTrue ("NaN", Double.isNaN (Quaternion.valueOf ("NaN+1i").getRpart()));
+      assertEquals ("infinity", Double.NEGATIVE_INFINITY, Quaternion.valueOf ("1-Infinityk").getKpart(), 0.);
+      for (String bad : new String[] { "", "1+", "1++2i", "1+2i+3i", "1 2i", "1+2x", "1e+i", "abc" }) {
+         try {
+            Quaternion.valueOf (bad);
+            fail ("valueOf must reject <" + bad + ">");
+         } catch (IllegalArgumentException e) {
+            assertTrue (e.getMessage(), e.getMessage().contains (bad.trim()));
+         }
+      }
+   }
+
+   @Test (timeout=10000)
+   public void testReadText() throws Exception {
+      java.nio.file.Path file = java.nio.file.Files.createTempFile ("quaternions", ".txt");
+      try {
+         StringBuilder text = new StringBuilder();
+         Quaternion[] qs = new Quaternion[5000];
+         java.util.Random random = new java.util.Random (2);
+         for (int i = 0; i < qs.length; i++) {
+            qs[i] = new Quaternion (random.nextGaussian(), random.nextGaussian(), random.nextGaussian(),
+               random.nextGaussian() * 1e10);
+            text.append (qs[i]).append (i % 100 == 0 ? "\r\n\n" : "\n");
+         }
+         java.nio.file.Files.writeString (file, text.toString().trim());
+         for (int threads = 1; threads <= 4; threads++) {
+            QuaternionArray read = QuaternionFiles.readText (file, threads);
+            assertEquals ("size with " + threads + " threads", qs.length, read.size());
+            for (int i = 0; i < qs.length; i++)
+               assertEquals ("quaternion " + i + " with " + threads + " threads", qs[i], read.get (i));
+         }
+         java.nio.file.Files.writeString (file, "1+2i+3j+4k\n\n5-6i\n7+8z\n");
+         try {
+            QuaternionFiles.readText (file, 2);
+            fail ("bad line must be reported");
+         } catch (IllegalArgumentException e) {
+            assertTrue (e.getMessage(), e.getMessage().contains ("line 4"));
+         }
+         java.nio.file.Files.writeString (file, "");
+         assertEquals ("empty file", 0, QuaternionFiles.readText (file, 3).size());
+      } finally {
+         java.nio.file.Files.delete (file);
+      }
+   }
+
+   @Test (timeout=5000)
+   public void testFormatter() throws Exception {
+      QuaternionFormatter formatter = new QuaternionFormatter();
+      StringBuilder out = new StringBuilder();
+      formatter.format (new Quaternion (1., -0.001, 1e7, -2.5e-4), out);
+      assertEquals ("format", "1.0-0.001i+1.0E7j-2.5E-4k", out.toString());
+      out.setLength (0);
+      formatter.format (0.1, 1e23, -0., Double.NaN, out);
+      assertEquals ("shortest digits", "0.1+1.0E23i-0.0j+NaNk", out.toString());
+      java.io.StringWriter writer = new java.io.StringWriter();
+      formatter.format (new Quaternion (-1., -2., -3., -4.), writer);
+      assertEquals ("any Appendable", "-1.0-2.0i-3.0j-4.0k", writer.toString());
+      java.util.Random random = new java.util.Random (3);
+      java.nio.ByteBuffer buffer = java.nio.ByteBuffer.allocate (QuaternionFormatter.MAX_LENGTH);
+      for (int i = 0; i < 10000; i++) {
+         double[] v = new double[4];
+         for (int j = 0; j < 4; j++)
+            v[j] = i % 2 == 0 ? Double.longBitsToDouble (random.nextLong())
+               : random.nextGaussian() * Math.pow (10., random.nextInt (20) - 10);
+         buffer.clear();
+         formatter.format (v[0], v[1], v[2], v[3], buffer);
+         String text = new String (buffer.array(), 0, buffer.position(),
+            java.nio.charset.StandardCharsets.US_ASCII);
+         Quaternion q = Quaternion.valueOf (text);
+         double[] back = { q.getRpart(), q.getIpart(), q.getJpart(), q.getKpart() };
+         for (int j = 0; j < 4; j++)
+            assertEquals ("round trip of " + v[j] + " in " + text, Double.doubleToLongBits (v[j]),
+               Double.doubleToLongBits (back[j]));
+      }
+      buffer.clear().position (buffer.limit() - 5);
+      try {
+         formatter.format (1., 2., 3., 4., buffer);
+         fail ("full buffer must throw");
+      } catch (java.nio.BufferOverflowException e) {
+         assertEquals ("nothing written", buffer.limit() - 5, buffer.position());
+      }
+   }
+
+   @Test (timeout=10000)
+   public void testFileRoundTrip() throws Exception {
+      java.nio.file.Path file = java.nio.file.Files.createTempFile ("quaternions", ".bin");
+      try {
+         java.util.Random random = new java.util.Random (4);
+         QuaternionArray qs = new QuaternionArray (20000);
+         for (int i = 0; i < qs.size(); i++)
+            qs.set (i, random.nextGaussian(), random.nextGaussian() * 1e-9, random.nextGaussian() * 1e9,
+               Double.longBitsToDouble (random.nextLong()));
+         QuaternionFiles.writeText (file, qs);
+         QuaternionArray text = QuaternionFiles.readText (file, 2);
+         QuaternionFiles.writeBinary (file, qs);
+         assertEquals ("binary size", 16 + 32L * qs.size(), java.nio.file.Files.size (file));
+         byte[] header = java.util.Arrays.copyOf (java.nio.file.Files.readAllBytes (file), 16);
+         assertEquals ("magic", "QUAT", new String (header, 0, 4, java.nio.charset.StandardCharsets.US_ASCII));
+         assertEquals ("little-endian count", qs.size(), (header[8] & 0xff) | (header[9] & 0xff) << 8);
+         QuaternionArray binary = QuaternionFiles.readBinary (file);
+         assertEquals ("text size", qs.size(), text.size());
+         assertEquals ("binary size", qs.size(), binary.size());
+         for (int i = 0; i < qs.size(); i++) {
+            assertEquals ("text a " + i, Double.doubleToLongBits (qs.a[i]), Double.doubleToLongBits (text.a[i]));
+            assertEquals ("text d " + i, Double.doubleToLongBits (qs.d[i]), Double.doubleToLongBits (text.d[i]));
+            assertEquals ("binary b " + i, Double.doubleToLongBits (qs.b[i]), Double.doubleToLongBits (binary.b[i]));
+            assertEquals ("binary d " + i, Double.doubleToLongBits (qs.d[i]), Double.doubleToLongBits (binary.d[i]));
+         }
+         java.nio.file.Files.write (file, java.util.Arrays.copyOf (java.nio.file.Files.readAllBytes (file), 16 + 31));
+         try {
+            QuaternionFiles.readBinary (file);
+            fail ("truncated file must be rejected");
+         } catch (java.io.IOException e) {
+            assertTrue (e.getMessage(), e.getMessage().contains ("header count"));
+         }
+         java.nio.file.Files.writeString (file, "1+2i+3j+4k\n");
+         try {
+            QuaternionFiles.readBinary (file);
+            fail ("text file must be rejected");
+         } catch (java.io.IOException e) {
+            assertTrue (e.getMessage(), e.getMessage().contains ("not a binary quaternion file"));
+         }
+      } finally {
+         java.nio.file.Files.delete (file);
+      }
+   }
+
+}